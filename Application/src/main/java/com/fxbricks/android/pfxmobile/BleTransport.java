@@ -0,0 +1,89 @@
+package com.fxbricks.android.pfxmobile;
+
+import java.util.UUID;
+
+/**
+ * {@link PfxTransport} over the Bluetooth LE connection to one brick.
+ *
+ * Commands go to the connection's command queue; notifications on the PFx data characteristic
+ * and Device Information Service values come back through the receiver, directly on the
+ * Bluetooth binder thread.
+ */
+public class BleTransport implements PfxTransport, BluetoothLeService.GattListener {
+    private final BrickConnection mConnection;
+    private volatile Receiver mReceiver;
+
+    public BleTransport(BrickConnection connection) {
+        mConnection = connection;
+        mConnection.addGattListener(this, null);
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        mReceiver = receiver;
+    }
+
+    @Override
+    public void send(byte[] frame) {
+        mConnection.writeMLDP(frame);
+    }
+
+    @Override
+    public void stopAll() {
+        mConnection.stopAll();
+    }
+
+    @Override
+    public void requestDeviceInformation() {
+        mConnection.readDeviceInformation();                                                        //In the background, behind the remote controls
+    }
+
+    @Override
+    public int getConnectionState() {
+        return mConnection.getConnectionState();
+    }
+
+    @Override
+    public void close() {
+        mConnection.removeGattListener(this);
+        mReceiver = null;
+    }
+
+    @Override
+    public void onConnectionStateChanged(int state) {
+        final Receiver receiver = mReceiver;
+        if (receiver != null) {
+            receiver.onConnectionStateChanged(state);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered() {
+        final Receiver receiver = mReceiver;
+        if (receiver != null) {
+            receiver.onReady();
+        }
+    }
+
+    @Override
+    public void onPfxDataReceived(BufferPool.Buffer data) {
+        final Receiver receiver = mReceiver;
+        if (receiver != null) {
+            receiver.onData(data);
+        }
+        else {
+            data.release();
+        }
+    }
+
+    @Override
+    public void onCharacteristicValue(UUID uuid, BufferPool.Buffer data) {
+        final Receiver receiver = mReceiver;
+        if (receiver != null) {
+            receiver.onDeviceInformation(uuid.toString(), data);
+        }
+        else {
+            data.release();
+        }
+    }
+}
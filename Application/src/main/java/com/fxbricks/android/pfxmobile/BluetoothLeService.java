@@ -16,47 +16,52 @@
 
 package com.fxbricks.android.pfxmobile;
 
+import android.app.Notification;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.util.Log;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connection and data communication with GATT servers hosted on
+ * Bluetooth LE devices.
+ *
+ * The service keeps a pool of {@link BrickConnection}s, one per PFx Brick, so a layout can drive
+ * several bricks at once.  Commands are addressed to a brick by its device address, to a named
+ * group of bricks, or to every brick.  The GATT operation queues of all connections share one
+ * thread, and the write window of each link shrinks as bricks are added, so the total number of
+ * unacknowledged writes in the radio stays bounded and no brick can crowd out the others.
+ *
+ * The service is started as well as bound, so the connections and the {@link BrickSession}s
+ * survive the Activity being recreated, e.g. on rotation.  While a brick is connected it runs in
+ * the foreground.  Once no Activity has been bound for IDLE_TIMEOUT it disconnects and stops
+ * itself.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private BluetoothGattService mGattInformationService;
-    private BluetoothGattService mMLPDService;
-    private BluetoothGattCharacteristic mldpDataCharacteristic, transparentTxDataCharacteristic, transparentRxDataCharacteristic;
 
-    public static final int STATE_DISCONNECTED = 0;
-    public static final int STATE_CONNECTING = 1;
-    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCONNECTED = PfxTransport.STATE_DISCONNECTED;
+    public static final int STATE_CONNECTING = PfxTransport.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = PfxTransport.STATE_CONNECTED;
+    public static final int STATE_RECONNECTING = PfxTransport.STATE_RECONNECTING;                   //Link dropped, waiting for the next attempt
 
     public final static String ACTION_GATT_CONNECTED = "com.fxbricks.bluetooth.le.ACTION_GATT_CONNECTED";
     public final static String ACTION_GATT_DISCONNECTED = "com.fxbricks.bluetooth.le.ACTION_GATT_DISCONNECTED";
@@ -65,251 +70,203 @@ public class BluetoothLeService extends Service {
 
     public final static String EXTRA_UUID = "com.fxbricks.bluetooth.le.EXTRA_UUID";
     public final static String EXTRA_DATA = "com.fxbricks.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_ADDRESS = "com.fxbricks.bluetooth.le.EXTRA_ADDRESS";             //Device address of the brick the broadcast is about
 
-    private final static UUID UUID_DEVICE_INFORMATION_SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
-    private final static UUID UUID_MLDP_PRIVATE_SERVICE = UUID.fromString("00035b03-58e6-07dd-021a-08123a000300"); //Private service for Microchip MLDP
-    private final static UUID UUID_MLDP_DATA_PRIVATE_CHAR = UUID.fromString( SampleGattAttributes.MLDP_DATA_PRIVATE_CHAR); //Characteristic for MLDP Data, properties - notify, write
-    private final static UUID UUID_MLDP_CONTROL_PRIVATE_CHAR = UUID.fromString("00035b03-58e6-07dd-021a-08123a0003ff"); //Characteristic for MLDP Control, properties - read, write
+    public static UUID[] uuidScanList = {BrickConnection.UUID_MLDP_PRIVATE_SERVICE, BrickConnection.UUID_TANSPARENT_PRIVATE_SERVICE};
 
-    private final static UUID UUID_TANSPARENT_PRIVATE_SERVICE = UUID.fromString("49535343-fe7d-4ae5-8fa9-9fafd205e455"); //Private service for Microchip Transparent
-    private final static UUID UUID_TRANSPARENT_TX_PRIVATE_CHAR = UUID.fromString( SampleGattAttributes.TRANSPARENT_TX_PRIVATE_CHAR ); //Characteristic for Transparent Data from BM module, properties - notify, write, write no response
-    private final static UUID UUID_TRANSPARENT_RX_PRIVATE_CHAR = UUID.fromString("49535343-8841-43f4-a8d4-ecbe34729bb3"); //Characteristic for Transparent Data to BM module, properties - write, write no response
+    public final static UUID UUID_HEART_RATE_MEASUREMENT = UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
 
-    private final static UUID UUID_CHAR_NOTIFICATION_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"); //Special descriptor needed to enable notifications
-    public static UUID[] uuidScanList = {UUID_MLDP_PRIVATE_SERVICE, UUID_TANSPARENT_PRIVATE_SERVICE};
-    private final Queue<BluetoothGattDescriptor> descriptorWriteQueue = new LinkedList<BluetoothGattDescriptor>();
-    private final Queue<BluetoothGattCharacteristic> characteristicWriteQueue = new LinkedList<BluetoothGattCharacteristic>();
+    // Android phones manage about 7 concurrent LE links, some fewer.  Beyond this, connect() fails
+    // rather than knocking another brick off the radio.
+    public final static int MAX_CONNECTIONS = 8;
 
-    public final static UUID UUID_HEART_RATE_MEASUREMENT = UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+    // Unacknowledged writes allowed across all links, shared out between the connected bricks.
+    // Each link gets at least 1 and at most the GattOperationQueue default.
+    private final static int SHARED_WRITE_WINDOW = 8;
+    private final static int MAX_LINK_WRITE_WINDOW = 4;
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                descriptorWriteQueue.clear();                                                   //Clear write queues in case there was something left in the queue from the previous connection
-                characteristicWriteQueue.clear();
-                Log.i(TAG, "Attempting to start service discovery:" +
-                    mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
-        }
+    private final Handler mHandler = new Handler();
+    private HandlerThread mGattThread;                                                              //Runs the GATT operation queues of every connection
+    private final ConcurrentHashMap<String, BrickConnection> mConnections = new ConcurrentHashMap<>();
+    private final HashMap<String, List<String>> mGroups = new HashMap<>();                          //Device addresses by group name, main thread only
+    private final BufferPool mBufferPool = new BufferPool();                                        //Notification payloads of every connection
+    private boolean mBroadcastUpdates = false;
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            try {
-                mldpDataCharacteristic = transparentTxDataCharacteristic = transparentRxDataCharacteristic = null;
-                mGattInformationService = null;
-                mMLPDService = null;
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    List<BluetoothGattService> gattServices = gatt.getServices();                       //Get the list of services discovered
-                    if (gattServices == null) {
-                        Log.d(TAG, "No BLE services found");
-                        return;
-                    }
-
-                    UUID uuid;
-                    for (BluetoothGattService gattService : gattServices) {                             //Loops through available GATT services
-                        uuid = gattService.getUuid();                                                   //Get the UUID of the service
-                        if( uuid.equals( UUID_DEVICE_INFORMATION_SERVICE )) {
-                            mGattInformationService = gattService;
-                        }
-                        else if (uuid.equals(UUID_MLDP_PRIVATE_SERVICE) || uuid.equals(UUID_TANSPARENT_PRIVATE_SERVICE)) { //See if it is the MLDP or Transparent private service UUID
-                            if( uuid.equals(UUID_TANSPARENT_PRIVATE_SERVICE) ) {
-                                mMLPDService = gattService;
-                            }
-                            List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
-                            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) { //Loops through available characteristics
-                                uuid = gattCharacteristic.getUuid();                                    //Get the UUID of the characteristic
-                                if (uuid.equals(UUID_TRANSPARENT_TX_PRIVATE_CHAR)) {                    //See if it is the Transparent Tx data private characteristic UUID
-                                    transparentTxDataCharacteristic = gattCharacteristic;
-                                    final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY)) > 0) { //See if the characteristic has the Notify property
-                                        mBluetoothGatt.setCharacteristicNotification(gattCharacteristic, true); //If so then enable notification in the BluetoothGatt
-                                        BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(UUID_CHAR_NOTIFICATION_DESCRIPTOR); //Get the descriptor that enables notification on the server
-                                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE); //Set the value of the descriptor to enable notification
-                                        descriptorWriteQueue.add(descriptor);                           //put the descriptor into the write queue
-                                        if(descriptorWriteQueue.size() == 1) {                          //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                                            mBluetoothGatt.writeDescriptor(descriptor);                 //Write the descriptor
-                                        }
-                                    }
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                                    }
-                                    Log.d(TAG, "Found Transparent service Tx characteristics");
-                                }
-                                if (uuid.equals(UUID_TRANSPARENT_RX_PRIVATE_CHAR)) {                    //See if it is the Transparent Rx data private characteristic UUID
-                                    transparentRxDataCharacteristic = gattCharacteristic;
-                                    final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                                    }
-                                    Log.d(TAG, "Found Transparent service Rx characteristics");
-                                }
-
-                                if (uuid.equals(UUID_MLDP_DATA_PRIVATE_CHAR)) {                         //See if it is the MLDP data private characteristic UUID
-                                    mldpDataCharacteristic = gattCharacteristic;
-                                    final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY)) > 0) { //See if the characteristic has the Notify property
-                                        mBluetoothGatt.setCharacteristicNotification(gattCharacteristic, true); //If so then enable notification in the BluetoothGatt
-                                        BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(UUID_CHAR_NOTIFICATION_DESCRIPTOR); //Get the descriptor that enables notification on the server
-                                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE); //Set the value of the descriptor to enable notification
-                                        descriptorWriteQueue.add(descriptor);                           //put the descriptor into the write queue
-                                        if(descriptorWriteQueue.size() == 1) {                          //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                                            mBluetoothGatt.writeDescriptor(descriptor);                 //Write the descriptor
-                                        }
-                                    }
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                                    }
-                                    Log.d(TAG, "Found MLDP service and characteristics");
-                                }
-                            }
-                            break;
-                        }
-                    }
-                    if(mldpDataCharacteristic == null && (transparentTxDataCharacteristic == null || transparentRxDataCharacteristic == null)) {
-                        Log.d(TAG, "Did not find MLDP or Transparent service");
-                    }
-
-                    broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                } else {
-                    Log.w(TAG, "onServicesDiscovered received: " + status);
-                }
-            }
-            catch (Exception e) {
-            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
-        }
+    /**
+     * Receives GATT events directly from a connection, without the cost of an Intent broadcast
+     * per notification.  Register with {@link #addGattListener(String, GattListener, Handler)}.
+     */
+    public interface GattListener {
+        /**
+         * @param state One of STATE_DISCONNECTED, STATE_CONNECTING, STATE_CONNECTED or
+         *              STATE_RECONNECTING.
+         */
+        void onConnectionStateChanged(int state);
+
+        void onServicesDiscovered();
+
+        /**
+         * Data notified by the PFx Brick on the MLDP or Transparent data characteristic.  The
+         * listener owns one reference to the buffer and must release it when done.
+         */
+        void onPfxDataReceived(BufferPool.Buffer data);
+
+        /**
+         * The value of any other characteristic, from a read or a notification.  The listener
+         * owns one reference to the buffer and must release it when done.
+         */
+        void onCharacteristicValue(UUID uuid, BufferPool.Buffer data);
     }
 
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
+    public class LocalBinder extends Binder {
+        BluetoothLeService getService() {
+            return BluetoothLeService.this;
         }
+    }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-        }
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mGattThread = new HandlerThread("GattOperationQueue");
+        mGattThread.start();
+    }
 
-        //Write completed
-        //Use write queue because BluetoothGatt can only do one write at a time
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            try {
-                if (status != BluetoothGatt.GATT_SUCCESS) {                                             //See if the write was successful
-                    Log.w(TAG, "Error writing GATT characteristic with status: " + status);
-                }
-                characteristicWriteQueue.remove();                                                      //Pop the item that we just finishing writing
-                if(characteristicWriteQueue.size() > 0) {                                               //See if there is more to write
-                    mBluetoothGatt.writeCharacteristic(characteristicWriteQueue.element());              //Write characteristic
-                }
-            }
-            catch (Exception e) {
-                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
-            }
-        }
+    @Override
+    public IBinder onBind(Intent intent) {
+        mBound = true;
+        mHandler.removeCallbacks(mIdleTimeout);
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        mBound = true;
+        mHandler.removeCallbacks(mIdleTimeout);
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mIdleTimeout);
+        close();
+        mGattThread.quitSafely();
+        super.onDestroy();
+    }
 
-        //Write descriptor completed
-        //Use write queue because BluetoothGatt can only do one write at a time
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // The connections are kept, a recreated Activity binds again straight away.  close() is
+        // called once nobody has come back for IDLE_TIMEOUT.
+        mBound = false;
+        mHandler.postDelayed(mIdleTimeout, IDLE_TIMEOUT);
+        return true;                                                                                //Call onRebind() for the next client
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    private final static int IDLE_TIMEOUT = 30000;                                                  //Milliseconds without a bound client before the service stops
+    private final static int NOTIFICATION_ID = 1;
+    private boolean mBound = false;
+    private final HashMap<String, BrickSession> mSessions = new HashMap<>();                        //Session with each brick, owned by the service
+    private final HashMap<String, BleTransport> mTransports = new HashMap<>();                      //Transport each session talks through
+    private final HashMap<String, String> mDeviceNames = new HashMap<>();                           //Advertised name of each brick with a session
+    private String mLastConnectedAddress;
+
+    private final Runnable mIdleTimeout = new Runnable() {
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            try {
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    Log.w(TAG, "Error writing GATT descriptor with status: " + status);
-                }
-                descriptorWriteQueue.remove();                                                          //Pop the item that we just finishing writing
-                if(descriptorWriteQueue.size() > 0) {                                                   //See if there is more to write
-                    mBluetoothGatt.writeDescriptor(descriptorWriteQueue.element());                      //Write descriptor
-                }
-            }
-            catch (Exception e) {
-                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        public void run() {
+            if (!mBound) {
+                Log.d(TAG, "No clients for " + IDLE_TIMEOUT + " ms, stopping");
+                disconnectAll();
+                close();
+                stopSelf();
             }
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-    }
-
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
-            }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else if (UUID_MLDP_DATA_PRIVATE_CHAR.equals(characteristic.getUuid()) || UUID_TRANSPARENT_TX_PRIVATE_CHAR.equals(characteristic.getUuid())) {
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                intent.putExtra(EXTRA_DATA, data);
-                intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
-            }
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-//                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
-                intent.putExtra(EXTRA_DATA, new String(data));
-                intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString() );
-            }
-        }
-        sendBroadcast(intent);
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;                                                                    //The connections are not worth restoring after the process is killed
     }
 
-    public class LocalBinder extends Binder {
-        BluetoothLeService getService() {
-            return BluetoothLeService.this;
+    /**
+     * Returns the session for the brick, creating it if the service has none for that address.
+     */
+    public BrickSession openSession(String address, String deviceName) {
+        BrickSession session = mSessions.get(address);
+        if (session != null) {
+            return session;
+        }
+        final BrickConnection connection = obtainConnection(address);
+        if (connection == null) {
+            return null;
         }
+        final BleTransport transport = new BleTransport(connection);                               //The session does its own threading
+        session = new BrickSession(new BrickMetadataStore(this), address, transport);
+        mTransports.put(address, transport);
+        mSessions.put(address, session);
+        mDeviceNames.put(address, deviceName);
+        return session;
     }
 
-    @Override
-    public IBinder onBind(Intent intent) {
-        return mBinder;
+    /**
+     * Returns the transport the session with the brick talks through, or null if there is no
+     * session for that address.
+     */
+    public PfxTransport getTransport(String address) {
+        return mTransports.get(address);
     }
 
-    @Override
-    public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
-        return super.onUnbind(intent);
+    private void closeSession(String address) {
+        final BrickSession session = mSessions.remove(address);
+        final BleTransport transport = mTransports.remove(address);
+        mDeviceNames.remove(address);
+        if (session != null) {
+            session.close();
+        }
+        if (transport != null) {
+            transport.close();
+        }
     }
 
-    private final IBinder mBinder = new LocalBinder();
+    // Runs in the foreground while any brick is wanted, with a notification leading back to the
+    // brick connected last.
+    private void updateForeground() {
+        final ArrayList<String> wanted = new ArrayList<>();
+        for (BrickConnection connection : mConnections.values()) {
+            if (connection.isWanted()) {
+                wanted.add(connection.getDeviceAddress());
+            }
+        }
+        if (wanted.isEmpty()) {
+            stopForeground(true);
+            return;
+        }
+        final String address = wanted.contains(mLastConnectedAddress) ? mLastConnectedAddress : wanted.get(0);
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, address);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, mDeviceNames.get(address));
+        intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        String text;
+        if (wanted.size() > 1) {
+            text = getString(R.string.notification_connected_count, wanted.size());
+        }
+        else {
+            String name = mDeviceNames.get(address);
+            final BrickSession session = mSessions.get(address);
+            if (session != null && !BrickState.UNKNOWN.equals(session.getState().getBrickName())) {
+                name = session.getState().getBrickName();
+            }
+            text = getString(R.string.notification_connected, null != name ? name : address);
+        }
+        final Notification notification = new Notification.Builder(this)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setSmallIcon(R.drawable.pfx_mobile)
+                .setOngoing(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT))
+                .build();
+        startForeground(NOTIFICATION_ID, notification);
+    }
 
     /**
      * Initializes a reference to the local Bluetooth adapter.
@@ -336,8 +293,49 @@ public class BluetoothLeService extends Service {
         return true;
     }
 
+    // Returns the pooled connection for the address, creating it if there is room in the pool.
+    private BrickConnection obtainConnection(String address) {
+        BrickConnection connection = mConnections.get(address);
+        if (connection != null) {
+            return connection;
+        }
+        if (mBluetoothAdapter == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return null;
+        }
+        if (mConnections.size() >= MAX_CONNECTIONS) {
+            Log.w(TAG, "Connection pool full, cannot add " + address);
+            return null;
+        }
+        connection = new BrickConnection(this, mBluetoothAdapter, address, mGattThread.getLooper(), mHandler, mBufferPool);
+        connection.setBroadcastUpdates(mBroadcastUpdates);
+        mConnections.put(address, connection);
+        return connection;
+    }
+
+    /**
+     * @return The pooled connection to the brick, or null if the service has none.
+     */
+    public BrickConnection getConnection(String address) {
+        return null != address ? mConnections.get(address) : null;
+    }
+
+    /**
+     * @return Addresses of the bricks in the pool that are connected or being connected.
+     */
+    public List<String> getConnectedAddresses() {
+        final ArrayList<String> addresses = new ArrayList<>();
+        for (BrickConnection connection : mConnections.values()) {
+            if (connection.isWanted()) {
+                addresses.add(connection.getDeviceAddress());
+            }
+        }
+        return addresses;
+    }
+
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device, adding it to the pool.  Other
+     * bricks stay connected.
      *
      * @param address The device address of the destination device.
      *
@@ -347,184 +345,229 @@ public class BluetoothLeService extends Service {
      *         callback.
      */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+        final BrickConnection connection = obtainConnection(address);
+        if (connection == null) {
             return false;
         }
+        final boolean result = connection.connect();
+        mLastConnectedAddress = address;
+        rebalanceWriteWindows();
+        updateForeground();                                                                         //Keeps the links up while the app is in the background
+        return result;
+    }
 
-        // Previously connected device.  Try to reconnect.
-//        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-//                && mBluetoothGatt != null) {
-//            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-//            if (mBluetoothGatt.connect()) {
-//                mConnectionState = STATE_CONNECTING;
-//                return true;
-//            } else {
-//                return false;
-//            }
-//        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
+    /**
+     * Disconnects the brick or cancels a pending connection.  The brick stays in the pool and can
+     * be connected again quickly.
+     */
+    public void disconnect(String address) {
+        final BrickConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "No connection to " + address);
+            return;
         }
+        connection.disconnect();
+        rebalanceWriteWindows();
+        updateForeground();
+    }
 
-        if (mBluetoothGatt!= null) {                                                                //See if an existing connection needs to be closed
-            mBluetoothGatt.close();                                                                  //Faster to create new connection than reconnect with existing BluetoothGatt
+    public void disconnectAll() {
+        for (BrickConnection connection : mConnections.values()) {
+            connection.disconnect();
         }
+        rebalanceWriteWindows();
+        updateForeground();
+    }
 
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+    // Shares SHARED_WRITE_WINDOW out between the bricks that are wanted.
+    private void rebalanceWriteWindows() {
+        int wanted = 0;
+        for (BrickConnection connection : mConnections.values()) {
+            if (connection.isWanted()) {
+                wanted++;
+            }
+        }
+        final int window = Math.max(1, Math.min(MAX_LINK_WRITE_WINDOW, SHARED_WRITE_WINDOW / Math.max(1, wanted)));
+        for (BrickConnection connection : mConnections.values()) {
+            connection.setWriteWindow(window);
+        }
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * Queues a PFx command frame for one brick.  The frame is written as is and must not be
+     * modified afterwards.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void writeMLDP(String address, byte[] byteValues) {
+        final BrickConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "Write attempted to " + address + " without a connection");
             return;
         }
-        mBluetoothGatt.disconnect();
+        connection.writeMLDP(byteValues);
     }
 
-    // ----------------------------------------------------------------------------------------------------------------
-    // Write to the MLDP data characteristic
-    public void writeMLDP(String string) {                                                          //Write string (may need to add code to limit write to 20 bytes)
-        try {
-            BluetoothGattCharacteristic writeDataCharacteristic;
-//            if (mldpDataCharacteristic != null) {
-//                writeDataCharacteristic = mldpDataCharacteristic;
-//            }
-//            else {
-//                writeDataCharacteristic = transparentRxDataCharacteristic;
-//            }
-
-            writeDataCharacteristic = mMLPDService.getCharacteristic(UUID_TRANSPARENT_RX_PRIVATE_CHAR);
-
-            if (mBluetoothAdapter == null || mBluetoothGatt == null || writeDataCharacteristic == null) {
-                Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
-                return;
-            }
-            writeDataCharacteristic.setValue(string);
-            characteristicWriteQueue.add(writeDataCharacteristic);                                       //Put the characteristic into the write queue
-            if(characteristicWriteQueue.size() == 1){                                                   //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                if (!mBluetoothGatt.writeCharacteristic(writeDataCharacteristic)) {                       //Request the BluetoothGatt to do the Write
-                    Thread.sleep( 200 );
-                    if( !mBluetoothGatt.writeCharacteristic(writeDataCharacteristic) ) {
-                    Log.d(TAG, "Failed to write characteristic");                                       //Write request was not accepted by the BluetoothGatt
-                    }
-                }
-            }
+    /**
+     * Stops every output of one brick, ahead of anything waiting for its link.
+     */
+    public void stopAll(String address) {
+        final BrickConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.stopAll();
         }
-        catch (Exception e) {
-            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+    }
+
+    /**
+     * Stops every output of every brick in the pool.
+     */
+    public void stopAll() {
+        for (BrickConnection connection : mConnections.values()) {
+            connection.stopAll();
         }
     }
 
-    public void writeMLDP(byte[] byteValues) {                                                      //Write bytes (may need to add code to limit write to 20 bytes)
-        try {
-            BluetoothGattCharacteristic writeDataCharacteristic;
-            if (mldpDataCharacteristic != null) {
-                writeDataCharacteristic = mldpDataCharacteristic;
-            }
-            else {
-                writeDataCharacteristic = transparentRxDataCharacteristic;
-            }
+    /**
+     * Defines or replaces a named group of bricks, e.g. the locomotives of one train.
+     */
+    public void setGroup(String group, Collection<String> addresses) {
+        mGroups.put(group, new ArrayList<>(addresses));
+    }
 
-//            writeDataCharacteristic = mMLPDService.getCharacteristic(UUID_TRANSPARENT_RX_PRIVATE_CHAR);
+    public void removeGroup(String group) {
+        mGroups.remove(group);
+    }
 
-            if (mBluetoothAdapter == null || mBluetoothGatt == null || writeDataCharacteristic == null) {
-                Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
-                return;
-            }
-            writeDataCharacteristic.setValue(byteValues);
-            characteristicWriteQueue.add(writeDataCharacteristic);                                       //Put the characteristic into the write queue
-            if(characteristicWriteQueue.size() == 1){                                                   //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                if (!mBluetoothGatt.writeCharacteristic(writeDataCharacteristic)) {                       //Request the BluetoothGatt to do the Write
-                    Thread.sleep( 200 );
-                    if( !mBluetoothGatt.writeCharacteristic(writeDataCharacteristic) ) {
-                        Log.d(TAG, "Failed to write characteristic");                                       //Write request was not accepted by the BluetoothGatt
-                    }
+    /**
+     * @return Device addresses in the group, empty if there is no such group.
+     */
+    public List<String> getGroup(String group) {
+        final List<String> addresses = mGroups.get(group);
+        return null != addresses ? Collections.unmodifiableList(addresses) : Collections.<String>emptyList();
+    }
+
+    public PfxFanOut writeGroup(String group, byte[] byteValues) {
+        return writeGroup(group, byteValues, null);
+    }
+
+    /**
+     * Sends the same PFx command frame to every brick in the group in one burst, so they react
+     * together.  Bricks that are not connected are counted as failed.  The frame is written as is
+     * and must not be modified afterwards.
+     *
+     * @param listener Told the measured skew once every brick's write is done, may be null.
+     */
+    public PfxFanOut writeGroup(String group, byte[] byteValues, PfxFanOut.Listener listener) {
+        return fanOut(getGroup(group), byteValues, listener);
+    }
+
+    /**
+     * Sends the same PFx command frame to every connected brick in one burst.
+     */
+    public PfxFanOut writeAll(byte[] byteValues, PfxFanOut.Listener listener) {
+        return fanOut(getConnectedAddresses(), byteValues, listener);
+    }
+
+    // The writes are handed to every GATT queue back to back.  The queues share one thread, so
+    // they are started one after the other with nothing else in between.
+    private PfxFanOut fanOut(List<String> addresses, byte[] byteValues, final PfxFanOut.Listener listener) {
+        final PfxFanOut fanOut = new PfxFanOut(byteValues, addresses.size(), new PfxFanOut.Listener() {
+            @Override
+            public void onFanOutComplete(PfxFanOut fanOut) {
+                Log.d(TAG, "Fan-out to " + fanOut.getBrickCount() + " bricks, skew " + fanOut.getSkew() / 1000
+                        + " us, " + fanOut.getFailedCount() + " failed");
+                if (listener != null) {
+                    listener.onFanOutComplete(fanOut);
                 }
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        });
+        for (String address : addresses) {
+            final BrickConnection connection = getConnection(address);
+            if (connection == null || !connection.writeDirect(byteValues, fanOut.newWriteCallback())) {
+                fanOut.onWriteSkipped();
+            }
         }
+        return fanOut;
     }
 
-    /**
-     * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
-     */
-    public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+    public void stopGroup(String group) {
+        for (String address : getGroup(group)) {
+            stopAll(address);
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
-     *
-     * @param characteristic The characteristic to read from.
+     * Reads the brick's Device Information Service characteristics, behind any PFx commands.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    public void readDeviceInformation(String address) {
+        final BrickConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.readDeviceInformation();
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+    }
+
+    public int getConnectionState(String address) {
+        final BrickConnection connection = getConnection(address);
+        return null != connection ? connection.getConnectionState() : STATE_DISCONNECTED;
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Registers a listener for the GATT events of one brick.
      *
-     * @param characteristic Characteristic to act on.
-     * @param enabled If true, enable notification.  False otherwise.
+     * @param listener The listener to add.
+     * @param handler The handler whose thread the listener is called on, or null to call it
+     *                directly on the Bluetooth binder thread.
+     * @return False if the brick could not be added to the pool.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-                                              boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    public boolean addGattListener(String address, GattListener listener, Handler handler) {
+        final BrickConnection connection = obtainConnection(address);
+        if (connection == null) {
+            return false;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        connection.addGattListener(listener, handler);
+        return true;
+    }
 
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+    public void removeGattListener(String address, GattListener listener) {
+        final BrickConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.removeGattListener(listener);
         }
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
-     * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
-     *
-     * @return A {@code List} of supported services.
+     * Turns the ACTION_ broadcasts on or off.  They are off by default and only kept for receivers
+     * that have not moved to {@link GattListener}.  Every broadcast carries EXTRA_ADDRESS.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public void setBroadcastUpdates(boolean enabled) {
+        mBroadcastUpdates = enabled;
+        for (BrickConnection connection : mConnections.values()) {
+            connection.setBroadcastUpdates(enabled);
+        }
+    }
 
-        return mBluetoothGatt.getServices();
+    /**
+     * Closes one brick's connection and session and removes it from the pool.
+     */
+    public void close(String address) {
+        closeSession(address);
+        final BrickConnection connection = mConnections.remove(address);
+        if (connection != null) {
+            connection.close();
+        }
+        rebalanceWriteWindows();
+        updateForeground();
     }
 
-    public BluetoothGattService getInformationService(){
-        return mGattInformationService;
+    /**
+     * After using the BLE devices, the app must call this method to ensure resources are
+     * released properly.
+     */
+    public void close() {
+        for (String address : new ArrayList<>(mConnections.keySet())) {
+            close(address);
+        }
+        for (String address : new ArrayList<>(mSessions.keySet())) {
+            closeSession(address);
+        }
+        stopForeground(true);
     }
 }
@@ -0,0 +1,912 @@
+package com.fxbricks.android.pfxmobile;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * GATT connection to one PFx Brick, owned by {@link BluetoothLeService}.
+ *
+ * Each connection has its own BluetoothGatt, characteristics, GATT operation queue, PFx command
+ * queue and listeners, so the service can drive several bricks at once.  The operation queues of
+ * all connections run on one thread supplied by the service.
+ *
+ * Methods are called on the main thread unless noted otherwise; the GATT callbacks arrive on the
+ * Bluetooth binder thread.
+ */
+public class BrickConnection {
+    private final static String TAG = BrickConnection.class.getSimpleName();
+
+    private final static UUID UUID_DEVICE_INFORMATION_SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    final static UUID UUID_MLDP_PRIVATE_SERVICE = UUID.fromString("00035b03-58e6-07dd-021a-08123a000300"); //Private service for Microchip MLDP
+    private final static UUID UUID_MLDP_DATA_PRIVATE_CHAR = UUID.fromString( SampleGattAttributes.MLDP_DATA_PRIVATE_CHAR); //Characteristic for MLDP Data, properties - notify, write
+    private final static UUID UUID_MLDP_CONTROL_PRIVATE_CHAR = UUID.fromString("00035b03-58e6-07dd-021a-08123a0003ff"); //Characteristic for MLDP Control, properties - read, write
+
+    final static UUID UUID_TANSPARENT_PRIVATE_SERVICE = UUID.fromString("49535343-fe7d-4ae5-8fa9-9fafd205e455"); //Private service for Microchip Transparent
+    private final static UUID UUID_TRANSPARENT_TX_PRIVATE_CHAR = UUID.fromString( SampleGattAttributes.TRANSPARENT_TX_PRIVATE_CHAR ); //Characteristic for Transparent Data from BM module, properties - notify, write, write no response
+    private final static UUID UUID_TRANSPARENT_RX_PRIVATE_CHAR = UUID.fromString("49535343-8841-43f4-a8d4-ecbe34729bb3"); //Characteristic for Transparent Data to BM module, properties - write, write no response
+
+    private final static int PREFERRED_ATT_MTU = 247;                                               //ATT MTU we ask for once the link is up (API 21+)
+
+    private final Context mContext;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final String mBluetoothDeviceAddress;
+    private final Handler mHandler;
+    private BluetoothGatt mBluetoothGatt;
+    private volatile int mConnectionState = BluetoothLeService.STATE_DISCONNECTED;
+
+    private volatile BluetoothGattService mGattInformationService;
+    private volatile BluetoothGattService mMLPDService;
+    private volatile BluetoothGattCharacteristic mldpDataCharacteristic, transparentTxDataCharacteristic, transparentRxDataCharacteristic;
+
+    // Every GATT operation goes through this queue, BluetoothGatt can only run one at a time
+    private final GattOperationQueue mOperationQueue;
+
+    // Bring-up runs at high connection priority (API 21+) until the GATT queue has gone idle after
+    // service discovery, or BRING_UP_MAX_TIME has passed, then drops back to balanced.
+    private final static int BRING_UP_CHECK_INTERVAL = 250;                                         //Milliseconds
+    private final static int BRING_UP_MAX_TIME = 10000;                                             //Milliseconds
+    private volatile long mConnectStartTime = 0;                                                    //SystemClock.elapsedRealtime() of connect()
+    private volatile long mTimeToCommandsReady = -1;
+    private volatile long mTimeToFirstCommand = -1;
+
+    // A reconnect through an existing BluetoothGatt skips client registration and service
+    // discovery.  The stack may treat it as a background connection though, so a new direct
+    // connection is made if it has not completed within FAST_RECONNECT_TIMEOUT.
+    private final static int FAST_RECONNECT_TIMEOUT = 3000;                                         //Milliseconds
+    private volatile boolean mReconnecting = false;
+
+    private final Runnable mFastReconnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnectionState == BluetoothLeService.STATE_CONNECTING) {
+                Log.d(TAG, "Reconnect with existing mBluetoothGatt is slow, making a new connection");
+                openConnection(false);
+            }
+        }
+    };
+
+    // A link that drops without disconnect() being called is reconnected automatically, with an
+    // exponential backoff between attempts.  The delay is randomised between half and all of the
+    // backoff so that several phones do not retry in lockstep.  Stops that were the last intent for
+    // a motor output are sent again once the link is back.
+    private final static int RECONNECT_BASE_DELAY = 250;                                            //Milliseconds
+    private final static int RECONNECT_MAX_DELAY = 8000;                                            //Milliseconds
+    private final Random mRandom = new Random();
+    private volatile boolean mAutoReconnect = false;                                                //Set by connect(), cleared by disconnect() and close()
+    private volatile int mReconnectAttempts = 0;
+    private volatile boolean mRestoreSession = false;
+    private volatile long mConnectedSince = 0;                                                      //SystemClock.elapsedRealtime() the link came up, 0 while down
+    private volatile long mDroppedAt = 0;                                                           //SystemClock.elapsedRealtime() the link dropped, 0 unless reconnecting
+    private volatile long mLastReconnectLatency = -1;
+    private volatile int mReconnectCount = 0;
+    private final byte[][] mLastIntents = new byte[PfxProtocol.COALESCE_KEY_COUNT][];              //Last remote event per motor output, guarded by mCommandQueue
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            if (mAutoReconnect && mConnectionState == BluetoothLeService.STATE_RECONNECTING) {
+                Log.d(TAG, "Reconnect attempt " + mReconnectAttempts + " to " + mBluetoothDeviceAddress);
+                openConnection(true);
+            }
+        }
+    };
+
+    private final Runnable mEndBringUp = new Runnable() {
+        @Override
+        public void run() {
+            if (!mOperationQueue.isIdle() && SystemClock.elapsedRealtime() - mConnectStartTime < BRING_UP_MAX_TIME) {
+                mHandler.postDelayed(this, BRING_UP_CHECK_INTERVAL);
+                return;
+            }
+            Log.d(TAG, "Bring-up done after " + (SystemClock.elapsedRealtime() - mConnectStartTime) + " ms");
+            requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+    };
+
+    // PFx commands wait here rather than in the GATT queue, so that stale drive commands can still
+    // be coalesced.  Only MAX_COMMAND_WRITES commands are handed to the GATT queue at a time, which
+    // is enough to keep the link busy.  Stops skip that limit and go to the front of the GATT queue.
+    // The limit also keeps one busy brick from filling the radio's buffers ahead of the others.
+    private final static int MAX_COMMAND_WRITES = 2;
+    private final PfxCommandQueue mCommandQueue = new PfxCommandQueue();
+    private int mCommandWrites = 0;                                                                 //Guarded by mCommandQueue
+
+    private final GattOperationQueue.Callback mCommandWriteCallback = new GattOperationQueue.Callback() {
+        @Override
+        public void onOperationComplete(int status) {
+            synchronized (mCommandQueue) {
+                mCommandWrites--;
+            }
+            writeQueuedCommands();
+        }
+    };
+
+    private static class ListenerRecord {
+        final BluetoothLeService.GattListener listener;
+        final Handler handler;
+
+        ListenerRecord(BluetoothLeService.GattListener listener, Handler handler) {
+            this.listener = listener;
+            this.handler = handler;
+        }
+    }
+
+    private final CopyOnWriteArrayList<ListenerRecord> mListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean mBroadcastUpdates = false;
+    private final BufferPool mBufferPool;                                                           //Notification payloads, recycled once every listener releases them
+
+    /**
+     * @param gattLooper Thread the GATT operation queue runs on.
+     * @param handler Handler on the main thread, for timers.
+     */
+    public BrickConnection(Context context, BluetoothAdapter adapter, String address, Looper gattLooper, Handler handler,
+                           BufferPool bufferPool) {
+        mContext = context;
+        mBluetoothAdapter = adapter;
+        mBluetoothDeviceAddress = address;
+        mOperationQueue = new GattOperationQueue(gattLooper);
+        mHandler = handler;
+        mBufferPool = bufferPool;
+    }
+
+    // Implements callback methods for GATT events that the app cares about.  For example,
+    // connection change and services discovered.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            String intentAction;
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                intentAction = BluetoothLeService.ACTION_GATT_CONNECTED;
+                mConnectionState = BluetoothLeService.STATE_CONNECTED;
+                mConnectedSince = SystemClock.elapsedRealtime();
+                mReconnectAttempts = 0;
+                mRestoreSession = mDroppedAt != 0;
+                dispatchConnectionStateChanged(BluetoothLeService.STATE_CONNECTED);
+                broadcastUpdate(intentAction);
+                Log.i(TAG, "Connected to GATT server " + mBluetoothDeviceAddress);
+                mHandler.removeCallbacks(mFastReconnectTimeout);
+                mOperationQueue.reset(gatt);                                                    //Drop anything left in the queue from the previous connection
+                requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);              //Shorter connection interval while discovering and setting up
+                // A reused BluetoothGatt still holds the services found last time.  If the PFx
+                // data characteristics are among them, skip discovery.
+                if (mReconnecting && resolveServices(gatt)) {
+                    Log.i(TAG, "Reconnected, using the services found last time");
+                    setUpServices();
+                }
+                else {
+                    // Attempts to discover services after successful connection.
+                    Log.i(TAG, "Attempting to start service discovery:" +
+                        gatt.discoverServices());
+                }
+                mReconnecting = false;
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                intentAction = BluetoothLeService.ACTION_GATT_DISCONNECTED;
+                mHandler.removeCallbacks(mEndBringUp);
+                mHandler.removeCallbacks(mFastReconnectTimeout);
+                synchronized (mCommandQueue) {
+                    clearServices();                                                                //Commands wait until the next link has resolved its own
+                    mCommandQueue.clear();
+                }
+                mOperationQueue.reset(null);
+                if (mConnectedSince != 0) {
+                    Log.i(TAG, "Disconnected from GATT server " + mBluetoothDeviceAddress + " after " + (SystemClock.elapsedRealtime() - mConnectedSince) + " ms.");
+                    mConnectedSince = 0;
+                }
+                if (mAutoReconnect) {
+                    if (mDroppedAt == 0) {
+                        mDroppedAt = SystemClock.elapsedRealtime();
+                    }
+                    mConnectionState = BluetoothLeService.STATE_RECONNECTING;
+                    scheduleReconnect();
+                    dispatchConnectionStateChanged(BluetoothLeService.STATE_RECONNECTING);
+                }
+                else {
+                    mConnectionState = BluetoothLeService.STATE_DISCONNECTED;
+                    dispatchConnectionStateChanged(BluetoothLeService.STATE_DISCONNECTED);
+                }
+                broadcastUpdate(intentAction);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            try {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    if (!resolveServices(gatt)) {
+                        Log.d(TAG, "Did not find MLDP or Transparent service");
+                    }
+                    setUpServices();
+                } else {
+                    Log.w(TAG, "onServicesDiscovered received: " + status);
+                }
+            }
+            catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                dispatchData(characteristic);
+                broadcastUpdate(BluetoothLeService.ACTION_DATA_AVAILABLE, characteristic);
+            }
+            mOperationQueue.onCharacteristicRead(status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            dispatchData(characteristic);
+            broadcastUpdate(BluetoothLeService.ACTION_DATA_AVAILABLE, characteristic);
+        }
+
+        //Write completed
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            mOperationQueue.onCharacteristicWrite(status);
+        }
+
+        //Write descriptor completed
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mOperationQueue.onDescriptorWrite(status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mOperationQueue.onMtuChanged(mtu, status);
+        }
+    };
+
+    public String getDeviceAddress() {
+        return mBluetoothDeviceAddress;
+    }
+
+    /**
+     * Registers a listener for the GATT events of this brick.
+     *
+     * @param listener The listener to add.
+     * @param handler The handler whose thread the listener is called on, or null to call it
+     *                directly on the Bluetooth binder thread.
+     */
+    public void addGattListener(BluetoothLeService.GattListener listener, Handler handler) {
+        for (ListenerRecord record : mListeners) {
+            if (record.listener == listener) {
+                return;
+            }
+        }
+        mListeners.add(new ListenerRecord(listener, handler));
+    }
+
+    public void removeGattListener(BluetoothLeService.GattListener listener) {
+        for (ListenerRecord record : mListeners) {
+            if (record.listener == listener) {
+                mListeners.remove(record);
+            }
+        }
+    }
+
+    void setBroadcastUpdates(boolean enabled) {
+        mBroadcastUpdates = enabled;
+    }
+
+    private void dispatchConnectionStateChanged(final int state) {
+        for (final ListenerRecord record : mListeners) {
+            if (record.handler == null) {
+                record.listener.onConnectionStateChanged(state);
+            }
+            else {
+                record.handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        record.listener.onConnectionStateChanged(state);
+                    }
+                });
+            }
+        }
+    }
+
+    private void dispatchServicesDiscovered() {
+        for (final ListenerRecord record : mListeners) {
+            if (record.handler == null) {
+                record.listener.onServicesDiscovered();
+            }
+            else {
+                record.handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        record.listener.onServicesDiscovered();
+                    }
+                });
+            }
+        }
+    }
+
+    // Copies the value into a pooled buffer and gives each listener its own reference, so the
+    // stack's array is never held on to and nothing is allocated per notification.
+    private void dispatchData(BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        if (value == null || value.length == 0 || mListeners.isEmpty()) {
+            return;
+        }
+        final UUID uuid = characteristic.getUuid();
+        final boolean pfxData = UUID_MLDP_DATA_PRIVATE_CHAR.equals(uuid) || UUID_TRANSPARENT_TX_PRIVATE_CHAR.equals(uuid);
+        final BufferPool.Buffer data = mBufferPool.obtain(value);
+        for (final ListenerRecord record : mListeners) {
+            data.retain();
+            if (record.handler == null) {
+                deliverData(record.listener, uuid, pfxData, data);
+            }
+            else {
+                record.handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverData(record.listener, uuid, pfxData, data);
+                    }
+                });
+            }
+        }
+        data.release();
+    }
+
+    private static void deliverData(BluetoothLeService.GattListener listener, UUID uuid, boolean pfxData, BufferPool.Buffer data) {
+        if (pfxData) {
+            listener.onPfxDataReceived(data);
+        }
+        else {
+            listener.onCharacteristicValue(uuid, data);
+        }
+    }
+
+    private void broadcastUpdate(final String action) {
+        if (!mBroadcastUpdates) {
+            return;
+        }
+        final Intent intent = new Intent(action);
+        intent.putExtra(BluetoothLeService.EXTRA_ADDRESS, mBluetoothDeviceAddress);
+        mContext.sendBroadcast(intent);
+    }
+
+    private void broadcastUpdate(final String action,
+                                 final BluetoothGattCharacteristic characteristic) {
+        if (!mBroadcastUpdates) {
+            return;
+        }
+        final Intent intent = new Intent(action);
+        intent.putExtra(BluetoothLeService.EXTRA_ADDRESS, mBluetoothDeviceAddress);
+
+        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
+        // carried out as per profile specifications:
+        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+        if (BluetoothLeService.UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
+            int flag = characteristic.getProperties();
+            int format = -1;
+            if ((flag & 0x01) != 0) {
+                format = BluetoothGattCharacteristic.FORMAT_UINT16;
+                Log.d(TAG, "Heart rate format UINT16.");
+            } else {
+                format = BluetoothGattCharacteristic.FORMAT_UINT8;
+                Log.d(TAG, "Heart rate format UINT8.");
+            }
+            final int heartRate = characteristic.getIntValue(format, 1);
+            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
+            intent.putExtra(BluetoothLeService.EXTRA_DATA, String.valueOf(heartRate));
+        } else if (UUID_MLDP_DATA_PRIVATE_CHAR.equals(characteristic.getUuid()) || UUID_TRANSPARENT_TX_PRIVATE_CHAR.equals(characteristic.getUuid())) {
+            final byte[] data = characteristic.getValue();
+            if (data != null && data.length > 0) {
+                intent.putExtra(BluetoothLeService.EXTRA_DATA, data);
+                intent.putExtra(BluetoothLeService.EXTRA_UUID, characteristic.getUuid().toString());
+            }
+        } else {
+            // For all other profiles, writes the data as text.
+            final byte[] data = characteristic.getValue();
+            if (data != null && data.length > 0) {
+                intent.putExtra(BluetoothLeService.EXTRA_DATA, new String(data));
+                intent.putExtra(BluetoothLeService.EXTRA_UUID, characteristic.getUuid().toString() );
+            }
+        }
+        mContext.sendBroadcast(intent);
+    }
+
+    // Forgets the services of the previous link, their characteristics belong to its BluetoothGatt.
+    private void clearServices() {
+        mldpDataCharacteristic = transparentTxDataCharacteristic = transparentRxDataCharacteristic = null;
+        mMLPDService = null;
+        mGattInformationService = null;
+    }
+
+    // Finds the PFx Brick data characteristics by UUID.
+    private boolean resolveServices(BluetoothGatt gatt) {
+        clearServices();
+        mGattInformationService = gatt.getService(UUID_DEVICE_INFORMATION_SERVICE);
+
+        BluetoothGattService gattService;
+        gattService = gatt.getService(UUID_MLDP_PRIVATE_SERVICE);
+        if (gattService != null) {
+            mldpDataCharacteristic = gattService.getCharacteristic(UUID_MLDP_DATA_PRIVATE_CHAR);
+            if (mldpDataCharacteristic != null) {
+                Log.d(TAG, "Found MLDP service and characteristics");
+                return true;
+            }
+        }
+        gattService = gatt.getService(UUID_TANSPARENT_PRIVATE_SERVICE);
+        if (gattService != null) {
+            mMLPDService = gattService;
+            transparentTxDataCharacteristic = gattService.getCharacteristic(UUID_TRANSPARENT_TX_PRIVATE_CHAR);
+            transparentRxDataCharacteristic = gattService.getCharacteristic(UUID_TRANSPARENT_RX_PRIVATE_CHAR);
+            if (transparentTxDataCharacteristic != null && transparentRxDataCharacteristic != null) {
+                Log.d(TAG, "Found Transparent service Tx and Rx characteristics");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Turns on notifications and unacknowledged writes for the characteristics found, then lets the
+    // controls loose.
+    private void setUpServices() {
+        for (BluetoothGattCharacteristic gattCharacteristic : new BluetoothGattCharacteristic[] {mldpDataCharacteristic, transparentTxDataCharacteristic, transparentRxDataCharacteristic}) {
+            if (gattCharacteristic == null) {
+                continue;
+            }
+            final int characteristicProperties = gattCharacteristic.getProperties();                 //Get the properties of the characteristic
+            if (gattCharacteristic != transparentRxDataCharacteristic
+                    && (characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY)) > 0) { //See if the characteristic has the Notify property
+                mOperationQueue.setNotification(gattCharacteristic, true, null);                    //If so then enable notification locally and on the server
+            }
+            if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
+                gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
+            }
+        }
+
+        // The controls can be used from here on.  Drive commands are queued ahead of the
+        // notification setup, which only has to happen before the first query; the MTU
+        // exchange and metadata reads run in the background behind the queries.
+        mOperationQueue.requestMtu(PREFERRED_ATT_MTU, GattOperationQueue.PRIORITY_BACKGROUND, null);
+        if (getWriteDataCharacteristic() != null) {
+            mTimeToCommandsReady = SystemClock.elapsedRealtime() - mConnectStartTime;
+            Log.d(TAG, "Ready for commands " + mTimeToCommandsReady + " ms after connect");
+            if (mRestoreSession) {
+                mRestoreSession = false;
+                mLastReconnectLatency = SystemClock.elapsedRealtime() - mDroppedAt;
+                mReconnectCount++;
+                mDroppedAt = 0;
+                Log.i(TAG, "Reconnected " + mLastReconnectLatency + " ms after the link dropped");
+                replayStops();
+            }
+            writeQueuedCommands();                                                                  //Anything sent while connecting
+        }
+        mHandler.post(mEndBringUp);
+
+        dispatchServicesDiscovered();
+        broadcastUpdate(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
+    }
+
+    /**
+     * Connects to the brick, and keeps reconnecting if the link drops until disconnect() is called.
+     *
+     * @return Return true if the connection is initiated successfully. The connection result
+     *         is reported asynchronously through the
+     *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
+     *         callback.
+     */
+    public boolean connect() {
+        mAutoReconnect = true;
+        if (mBluetoothGatt != null) {
+            if (mConnectionState == BluetoothLeService.STATE_CONNECTED || mConnectionState == BluetoothLeService.STATE_CONNECTING) {
+                return true;                                                                        //Already connected or on the way
+            }
+            mHandler.removeCallbacks(mReconnect);                                                   //Try now rather than after the backoff
+        }
+        return openConnection(true);
+    }
+
+    // Connects to the brick, through the existing BluetoothGatt if there is one and reuse is
+    // allowed.  The state is set before the attempt is started, because the connection callback
+    // can arrive on a binder thread before connect() or connectGatt() has returned.
+    private boolean openConnection(boolean reuse) {
+        if (reuse && mBluetoothGatt != null) {
+            // Previously connected device.  Reuse the BluetoothGatt, which keeps the services
+            // found last time, and fall back to a new connection if that is slow.
+            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            final int previousState = mConnectionState;
+            mConnectStartTime = SystemClock.elapsedRealtime();
+            mTimeToCommandsReady = mTimeToFirstCommand = -1;
+            mReconnecting = true;
+            mConnectionState = BluetoothLeService.STATE_CONNECTING;
+            mHandler.postDelayed(mFastReconnectTimeout, FAST_RECONNECT_TIMEOUT);
+            if (mBluetoothGatt.connect()) {
+                return true;
+            }
+            mHandler.removeCallbacks(mFastReconnectTimeout);                                        //Refused, undo and make a new connection
+            mReconnecting = false;
+            mConnectionState = previousState;
+        }
+
+        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mBluetoothDeviceAddress);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return false;
+        }
+
+        mConnectStartTime = SystemClock.elapsedRealtime();
+        mTimeToCommandsReady = mTimeToFirstCommand = -1;
+        mReconnecting = false;
+        mHandler.removeCallbacks(mFastReconnectTimeout);
+
+        if (mBluetoothGatt!= null) {                                                                //See if an existing connection needs to be closed
+            mBluetoothGatt.close();
+        }
+
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        final int previousState = mConnectionState;
+        mConnectionState = BluetoothLeService.STATE_CONNECTING;
+        mBluetoothGatt = device.connectGatt(mContext, false, mGattCallback);
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "Unable to create a new connection.");
+            mAutoReconnect = false;
+            mConnectionState = BluetoothLeService.STATE_DISCONNECTED;
+            if (previousState != BluetoothLeService.STATE_DISCONNECTED) {
+                dispatchConnectionStateChanged(BluetoothLeService.STATE_DISCONNECTED);              //Was reconnecting, no callback will come
+            }
+            return false;
+        }
+        Log.d(TAG, "Trying to create a new connection.");
+        return true;
+    }
+
+    /**
+     * Disconnects an existing connection or cancel a pending connection. The disconnection result
+     * is reported asynchronously through the
+     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
+     * callback.  A connection that was not up yet is reported disconnected straight away.
+     */
+    public void disconnect() {
+        mAutoReconnect = false;
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.removeCallbacks(mFastReconnectTimeout);
+        mDroppedAt = 0;
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mBluetoothGatt.disconnect();                                                                //Also cancels a connection attempt in progress
+        final int state = mConnectionState;
+        if (state != BluetoothLeService.STATE_CONNECTED && state != BluetoothLeService.STATE_DISCONNECTED) {
+            // Between attempts, or cancelling one: no callback is guaranteed to come
+            mConnectionState = BluetoothLeService.STATE_DISCONNECTED;
+            dispatchConnectionStateChanged(BluetoothLeService.STATE_DISCONNECTED);
+        }
+    }
+
+    /**
+     * Releases the BluetoothGatt and the queue.  The connection cannot be used afterwards.
+     */
+    public void close() {
+        mAutoReconnect = false;
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.removeCallbacks(mFastReconnectTimeout);
+        mHandler.removeCallbacks(mEndBringUp);
+        mOperationQueue.quit();
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mBluetoothGatt.close();
+        mBluetoothGatt = null;
+        mConnectionState = BluetoothLeService.STATE_DISCONNECTED;
+    }
+
+    // True from connect() until disconnect() or close(), including while reconnecting.
+    public boolean isWanted() {
+        return mAutoReconnect;
+    }
+
+    private void scheduleReconnect() {
+        final int backoff = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY << Math.min(mReconnectAttempts, 5));
+        final int delay = backoff / 2 + mRandom.nextInt(backoff / 2 + 1);
+        mReconnectAttempts++;
+        Log.d(TAG, "Reconnecting in " + delay + " ms");
+        mHandler.postDelayed(mReconnect, delay);
+    }
+
+    // Sends the stops that were the last intent for their motor output again, they may have been
+    // lost with the link.  Drive commands are not replayed, most of them are relative steps.
+    private void replayStops() {
+        synchronized (mCommandQueue) {
+            for (byte[] intent : mLastIntents) {
+                if (intent != null && PfxProtocol.isStopEvent(PfxProtocol.remoteEvent(intent))) {
+                    mCommandQueue.offer(intent);
+                }
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write to the MLDP data characteristic
+    public void writeMLDP(String string) {                                                          //Write string, fragmented to the ATT MTU
+        try {
+            BluetoothGattCharacteristic writeDataCharacteristic;
+//            if (mldpDataCharacteristic != null) {
+//                writeDataCharacteristic = mldpDataCharacteristic;
+//            }
+//            else {
+//                writeDataCharacteristic = transparentRxDataCharacteristic;
+//            }
+
+            final BluetoothGattService service = mMLPDService;
+            writeDataCharacteristic = service != null ? service.getCharacteristic(UUID_TRANSPARENT_RX_PRIVATE_CHAR) : null;
+
+            if (mBluetoothGatt == null || writeDataCharacteristic == null) {
+                Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
+                return;
+            }
+            mOperationQueue.writeCharacteristic(writeDataCharacteristic, string.getBytes("UTF-8"), null); //Same encoding as BluetoothGattCharacteristic.setValue(String)
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    public void writeMLDP(byte[] byteValues) {                                                      //Write a PFx command frame, fragmented to the ATT MTU
+        try {
+            if (mBluetoothGatt == null || mConnectionState == BluetoothLeService.STATE_DISCONNECTED) {
+                Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
+                return;
+            }
+            synchronized (mCommandQueue) {
+                final int key = PfxProtocol.coalesceKey(byteValues);
+                if (key != PfxProtocol.NO_COALESCE_KEY) {
+                    mLastIntents[key] = byteValues;
+                }
+                if (!mCommandQueue.offer(byteValues)) {                                             //Queued while connecting, sent once this link's services are resolved
+                    Log.w(TAG, "Command queue full, dropping command");
+                }
+            }
+            writeQueuedCommands();
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a PFx command frame straight to the GATT queue for a group fan-out, skipping the
+     * command queue.  The frame is written with the priority it would have in the command queue:
+     * a stop goes ahead of everything else and drops the drive commands and speed steps still
+     * waiting for the outputs it stops, a drive command drops the one still waiting for its output.
+     * The frame is written as is and must not be modified afterwards.
+     *
+     * @param callback Called on the GATT operation thread once the stack has taken the write.
+     * @return False if the brick is not ready for commands, the callback is not called then.
+     */
+    public boolean writeDirect(byte[] frame, GattOperationQueue.Callback callback) {
+        synchronized (mCommandQueue) {
+            final BluetoothGattCharacteristic writeDataCharacteristic = getWriteDataCharacteristic();
+            if (mBluetoothGatt == null || writeDataCharacteristic == null || mConnectionState != BluetoothLeService.STATE_CONNECTED) {
+                return false;
+            }
+            final int priority = PfxCommandQueue.priority(frame);
+            final int key = PfxProtocol.coalesceKey(frame);
+            if (key != PfxProtocol.NO_COALESCE_KEY) {
+                mLastIntents[key] = frame;
+            }
+            if (priority == PfxCommandQueue.PRIORITY_STOP) {
+                mCommandQueue.removeStopped(frame);
+                mOperationQueue.cancelPendingWrites(PfxProtocol.stoppedTags(frame));                //Runs before the write below, same queue thread
+            }
+            else if (key != PfxProtocol.NO_COALESCE_KEY) {
+                mCommandQueue.removeKey(key);
+                mOperationQueue.cancelPendingWrites(key);                                           //Tagged with its key, see PfxProtocol.writeTag()
+            }
+            if (mTimeToFirstCommand < 0) {
+                mTimeToFirstCommand = SystemClock.elapsedRealtime() - mConnectStartTime;
+            }
+            mOperationQueue.writeFrame(writeDataCharacteristic, frame, priority, PfxProtocol.writeTag(frame), callback);
+            return true;
+        }
+    }
+
+    private BluetoothGattCharacteristic getWriteDataCharacteristic() {
+        if (mldpDataCharacteristic != null) {
+            return mldpDataCharacteristic;
+        }
+        return transparentRxDataCharacteristic;
+    }
+
+    // Moves commands from the command queue to the GATT queue while it has room for them.
+    private void writeQueuedCommands() {
+        synchronized (mCommandQueue) {
+            final BluetoothGattCharacteristic writeDataCharacteristic = getWriteDataCharacteristic();
+            if (writeDataCharacteristic == null) {
+                return;
+            }
+            int priority;
+            while ((priority = mCommandQueue.nextPriority()) != PfxCommandQueue.NO_PRIORITY) {
+                if (priority != PfxCommandQueue.PRIORITY_STOP && mCommandWrites >= MAX_COMMAND_WRITES) {
+                    break;
+                }
+                final byte[] command = mCommandQueue.poll();
+                if (priority == PfxCommandQueue.PRIORITY_STOP) {
+                    mOperationQueue.cancelPendingWrites(PfxProtocol.stoppedTags(command));          //Drive commands and speed steps for these outputs are stale now
+                }
+                mCommandWrites++;
+                if (mTimeToFirstCommand < 0) {
+                    mTimeToFirstCommand = SystemClock.elapsedRealtime() - mConnectStartTime;
+                }
+                mOperationQueue.writeFrame(writeDataCharacteristic, command, priority, PfxProtocol.writeTag(command), mCommandWriteCallback);
+            }
+        }
+    }
+
+    /**
+     * Stops both outputs of every channel.  All queued drive commands are dropped and the stop is
+     * written ahead of anything else waiting for the link, so it goes out as soon as the operation
+     * currently in flight has completed.
+     */
+    public void stopAll() {
+        synchronized (mCommandQueue) {
+            for (int channel = 0; channel < PfxProtocol.CHANNEL_COUNT; channel++) {                 //Replayed if the link is down
+                mLastIntents[channel * 2 + PfxProtocol.MOTOR_SIDE_LEFT] = PfxCodec.remoteEventFrame(PfxProtocol.EVT_8885_LEFT_CTROFF, channel);
+                mLastIntents[channel * 2 + PfxProtocol.MOTOR_SIDE_RIGHT] = PfxCodec.remoteEventFrame(PfxProtocol.EVT_8885_RIGHT_CTROFF, channel);
+            }
+            final BluetoothGattCharacteristic writeDataCharacteristic = getWriteDataCharacteristic();
+            if (mBluetoothGatt == null || writeDataCharacteristic == null || mConnectionState != BluetoothLeService.STATE_CONNECTED) {
+                Log.w(TAG, "Stop attempted with Bluetooth uninitialized or not connected");
+                return;
+            }
+            mCommandQueue.clearRemoteEvents();
+            mOperationQueue.cancelPendingWrites(GattOperationQueue.TAG_ANY);                        //Every remote event is written with a tag
+            mCommandWrites++;
+            mOperationQueue.writeFrame(writeDataCharacteristic, PfxCodec.allStopFrames(),
+                    GattOperationQueue.PRIORITY_HIGHEST, GattOperationQueue.TAG_NONE, mCommandWriteCallback);
+        }
+    }
+
+    // Number of drive commands replaced by a newer one for the same channel and motor before being sent.
+    public int getCoalescedCommandCount() {
+        return mCommandQueue.getCoalescedCount();
+    }
+
+    /**
+     * Sets how many write-without-response fragments may be outstanding in the stack at once.
+     *
+     * @param window Number of unacknowledged writes, 1 for strict serialization.
+     */
+    public void setWriteWindow(int window) {
+        mOperationQueue.setWriteWindow(window);
+    }
+
+    public int getWriteWindow() {
+        return mOperationQueue.getWriteWindow();
+    }
+
+    // Total number of GATT retries scheduled since the connection was created.  A steadily
+    // climbing count means the link is saturated.
+    public int getWriteRetryCount() {
+        return mOperationQueue.getRetryCount();
+    }
+
+    // GATT operations dropped after using up their retries.
+    public int getWriteDropCount() {
+        return mOperationQueue.getDropCount();
+    }
+
+    // Backoff delay of the most recently scheduled retry, in milliseconds.
+    public int getLastWriteRetryDelay() {
+        return mOperationQueue.getLastRetryDelay();
+    }
+
+    /**
+     * Request a read on a given {@code BluetoothGattCharacteristic}.
+     *
+     * @param characteristic The characteristic to read from.
+     * @param callback Called on the GATT operation thread once the read has completed, may be null.
+     */
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic, GattOperationQueue.Callback callback) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        mOperationQueue.readCharacteristic(characteristic, callback);
+    }
+
+    /**
+     * Enables or disables notification on a give characteristic.  The client characteristic
+     * configuration descriptor is written as well if the characteristic has one.
+     *
+     * @param characteristic Characteristic to act on.
+     * @param enabled If true, enable notification.  False otherwise.
+     */
+    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                              boolean enabled) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        mOperationQueue.setNotification(characteristic, enabled, null);
+    }
+
+    /**
+     * Retrieves a list of supported GATT services on the connected device. This should be
+     * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
+     *
+     * @return A {@code List} of supported services.
+     */
+    public List<BluetoothGattService> getSupportedGattServices() {
+        if (mBluetoothGatt == null) return null;
+
+        return mBluetoothGatt.getServices();
+    }
+
+    public BluetoothGattService getInformationService(){
+        return mGattInformationService;
+    }
+
+    /**
+     * Reads every Device Information Service characteristic, behind any PFx commands.  The values
+     * are reported through {@link BluetoothLeService.GattListener#onCharacteristicValue}.
+     */
+    public void readDeviceInformation() {
+        if (mBluetoothGatt == null || mGattInformationService == null) {
+            return;
+        }
+        for (BluetoothGattCharacteristic characteristic : mGattInformationService.getCharacteristics()) {
+            mOperationQueue.readCharacteristic(characteristic, GattOperationQueue.PRIORITY_BACKGROUND, null);
+        }
+    }
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    // Milliseconds the current link has been up, 0 while disconnected.
+    public long getConnectionUptime() {
+        final long since = mConnectedSince;
+        return since != 0 ? SystemClock.elapsedRealtime() - since : 0;
+    }
+
+    // Milliseconds from the link dropping until the brick took commands again, for the last automatic reconnect, or -1.
+    public long getLastReconnectLatency() {
+        return mLastReconnectLatency;
+    }
+
+    public int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    // Milliseconds from connect() until the write characteristic was found, or -1.
+    public long getTimeToCommandsReady() {
+        return mTimeToCommandsReady;
+    }
+
+    // Milliseconds from connect() until the first PFx command was handed to the GATT queue, or -1.
+    public long getTimeToFirstCommand() {
+        return mTimeToFirstCommand;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void requestConnectionPriority(int priority) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mBluetoothGatt != null) {
+            mBluetoothGatt.requestConnectionPriority(priority);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.fxbricks.android.pfxmobile;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent cache of what is known about each PFx Brick, keyed by Bluetooth device address.
+ *
+ * Each brick is stored as one versioned JSON record holding its name, firmware and hardware
+ * version and the Device Information Service values.  Records written with another schema version
+ * are ignored.  A brick name saved by older versions of the app in CACHED_BRICK_INFO is picked up
+ * the first time the brick is loaded, and moved over when the brick is next saved.
+ *
+ * save() writes synchronously and should not be called on the main thread.
+ */
+public class BrickMetadataStore {
+    private final static String TAG = BrickMetadataStore.class.getSimpleName();
+
+    public static final int SCHEMA_VERSION = 1;
+
+    private static final String PREFERENCES_NAME = "com.fxbricks.pfxmobile.BRICK_METADATA";
+    private static final String LEGACY_PREFERENCES_NAME = "com.fxbricks.pfxmobile.CACHED_BRICK_INFO"; //Brick names only
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_FIRMWARE = "firmware";
+    private static final String KEY_HARDWARE = "hardware";
+    private static final String KEY_CHARACTERISTICS = "characteristics";
+
+    private final SharedPreferences mPreferences;
+    private final SharedPreferences mLegacyPreferences;
+
+    public BrickMetadataStore(Context context) {
+        mPreferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mLegacyPreferences = context.getApplicationContext().getSharedPreferences(LEGACY_PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The cached state of the brick, or null if nothing is known about it.
+     */
+    public BrickState load(String deviceAddress) {
+        String record = mPreferences.getString(deviceAddress, null);
+        if (null != record) {
+            try {
+                JSONObject json = new JSONObject(record);
+                if (json.optInt(KEY_VERSION) == SCHEMA_VERSION) {
+                    HashMap<String, String> characteristicValues = new HashMap<>();
+                    JSONObject characteristics = json.optJSONObject(KEY_CHARACTERISTICS);
+                    if (null != characteristics) {
+                        for (Iterator<String> it = characteristics.keys(); it.hasNext(); ) {
+                            String uuid = it.next();
+                            characteristicValues.put(uuid, characteristics.getString(uuid));
+                        }
+                    }
+                    return new BrickState(deviceAddress,
+                            json.optString(KEY_NAME, BrickState.UNKNOWN),
+                            json.optString(KEY_FIRMWARE, BrickState.UNKNOWN),
+                            json.optString(KEY_HARDWARE, BrickState.UNKNOWN),
+                            characteristicValues);
+                }
+                Log.d(TAG, "Ignoring brick record with schema version " + json.optInt(KEY_VERSION));
+            }
+            catch (JSONException e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+
+        String legacyName = mLegacyPreferences.getString(deviceAddress, null);
+        if (null != legacyName) {
+            return new BrickState(deviceAddress, legacyName, BrickState.UNKNOWN, BrickState.UNKNOWN, new HashMap<String, String>());
+        }
+        return null;
+    }
+
+    /**
+     * @return The cached name of the brick, or defaultName if it is not known.
+     */
+    public String getBrickName(String deviceAddress, String defaultName) {
+        BrickState state = load(deviceAddress);
+        if (null == state || BrickState.UNKNOWN.equals(state.getBrickName())) {
+            return defaultName;
+        }
+        return state.getBrickName();
+    }
+
+    /**
+     * @return The firmware version the cached name and device information were read under, or
+     *         null if the brick's name was never read.
+     */
+    public static String metadataFirmwareVersion(BrickState cached) {
+        if (null == cached || BrickState.UNKNOWN.equals(cached.getBrickName())) {
+            return null;
+        }
+        return cached.getFirmwareVersion();
+    }
+
+    /**
+     * The name and device information of a brick are cached for the firmware version they were
+     * read under.  A firmware update may change them, so they are read again when the brick
+     * reports another version.
+     *
+     * @param metadataFirmwareVersion Firmware version the metadata was read, or requested, under;
+     *                                null if it never was.
+     * @return True if the metadata has to be read again.
+     */
+    public static boolean isStale(String metadataFirmwareVersion, String firmwareVersion) {
+        return null == metadataFirmwareVersion || !metadataFirmwareVersion.equals(firmwareVersion);
+    }
+
+    public void save(BrickState state) {
+        try {
+            JSONObject characteristics = new JSONObject();
+            for (Map.Entry<String, String> entry : state.getCharacteristicValues().entrySet()) {
+                characteristics.put(entry.getKey(), entry.getValue());
+            }
+            JSONObject json = new JSONObject();
+            json.put(KEY_VERSION, SCHEMA_VERSION);
+            json.put(KEY_NAME, state.getBrickName());
+            json.put(KEY_FIRMWARE, state.getFirmwareVersion());
+            json.put(KEY_HARDWARE, state.getHardwareVersion());
+            json.put(KEY_CHARACTERISTICS, characteristics);
+            mPreferences.edit().putString(state.getDeviceAddress(), json.toString()).commit();
+            if (mLegacyPreferences.contains(state.getDeviceAddress())) {
+                mLegacyPreferences.edit().remove(state.getDeviceAddress()).commit();               //Migrated
+            }
+        }
+        catch (JSONException e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+}
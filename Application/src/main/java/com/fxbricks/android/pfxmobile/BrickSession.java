@@ -0,0 +1,380 @@
+package com.fxbricks.android.pfxmobile;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Protocol session with one PFx Brick.
+ *
+ * Everything that touches the bytes sent by the brick runs on a dedicated protocol thread: frame
+ * parsing, matching responses to requests, request deadlines and writing the cached brick info to
+ * disk.  The UI is handed immutable {@link BrickState} snapshots.  A burst of changes results in
+ * a single update, carrying the latest state.
+ *
+ * The session starts out with what {@link BrickMetadataStore} remembers about the brick, so it
+ * can be shown before the connection is up.  Once connected only the status is requested; the
+ * name and the Device Information Service are read again only if nothing is cached or the
+ * firmware version has changed.  A name request that fails is retried a few times with a growing
+ * delay; a brick without a Device Information Service is not asked again.  The status keeps being
+ * polled by a {@link PfxTelemetryPoller} for as long as the link is up, backing off while the
+ * remote controls are in use; only a status that differs from the last one is published.
+ *
+ * The session talks to the brick through a {@link PfxTransport} and receives from it directly,
+ * moving the work onto its own thread.  The session is owned by the service and outlives the UI;
+ * an Activity attaches with setListener() and detaches again when it is destroyed.
+ */
+public class BrickSession implements PfxTransport.Receiver {
+    private final static String TAG = BrickSession.class.getSimpleName();
+
+    private static final long SAVE_DELAY = 500;                                                     //Milliseconds, so several updates are written at once
+    private static final long NAME_RETRY_BASE_DELAY = 1000;                                         //Milliseconds, doubled with every retry
+    private static final int NAME_MAX_RETRIES = 4;
+
+    /**
+     * Session events, called on the handler given to the session.
+     */
+    public interface Listener {
+        void onConnectionStateChanged(int state);
+
+        void onServicesDiscovered();
+
+        /**
+         * Called with the latest state after one or more changes.
+         */
+        void onBrickStateChanged(BrickState state);
+    }
+
+    private final ScheduledExecutorService mProtocolThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "PfxProtocol");
+        }
+    });
+    private final BrickMetadataStore mStore;
+    private final PfxTransport mTransport;
+    private volatile Listener mListener;                                                            //Only called on mListenerHandler
+    private Handler mListenerHandler;                                                               //Guarded by this
+    private final AtomicBoolean mUpdatePending = new AtomicBoolean(false);
+
+    private final PfxFrameParser mFrameParser;
+    private final PfxCommandClient mCommandClient;
+    private final PfxTelemetryPoller mTelemetryPoller;
+
+    // Session state, only touched on the protocol thread
+    private final String mDeviceAddress;
+    private String mBrickName = BrickState.UNKNOWN;
+    private String mFirmwareVersion = BrickState.UNKNOWN;
+    private String mHardwareVersion = BrickState.UNKNOWN;
+    private final HashMap<String, String> mCharacteristicValues = new HashMap<>();
+    private PfxStatus mStatus;                                                                      //Last status response, null until one arrives
+    private String mMetadataFirmwareVersion;                                                        //Name and device information read or requested under it, null if never
+    private int mNameRetries = 0;
+    private ScheduledFuture<?> mNameRetry;
+    private boolean mSavePending = false;
+
+    private volatile BrickState mState;
+    private volatile boolean mClosed = false;
+
+    public BrickSession(BrickMetadataStore store, String deviceAddress, PfxTransport transport) {
+        mStore = store;
+        mTransport = transport;
+        mDeviceAddress = deviceAddress;
+        mFrameParser = new PfxFrameParser(new PfxFrameParser.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                if (!mCommandClient.onFrame(frame, length)) {
+                    Log.d(TAG, String.format("Unexpected PFx response 0x%02X", frame[0] & 0xFF));
+                }
+            }
+        });
+        mCommandClient = new PfxCommandClient(new PfxCommandClient.CommandSender() {
+            @Override
+            public void send(byte[] frame) {
+                mTransport.send(frame);
+            }
+        }, mProtocolThread);
+        mTelemetryPoller = new PfxTelemetryPoller(mCommandClient, mProtocolThread, mTelemetryListener);
+        mState = snapshot();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                BrickState cached = mStore.load(mDeviceAddress);
+                if (null != cached) {
+                    mBrickName = cached.getBrickName();
+                    mFirmwareVersion = cached.getFirmwareVersion();
+                    mHardwareVersion = cached.getHardwareVersion();
+                    mCharacteristicValues.putAll(cached.getCharacteristicValues());
+                    mMetadataFirmwareVersion = BrickMetadataStore.metadataFirmwareVersion(cached);
+                    publish();
+                }
+            }
+        });
+        mTransport.setReceiver(this);
+    }
+
+    /**
+     * @return The latest state, from any thread.
+     */
+    public BrickState getState() {
+        return mState;
+    }
+
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    /**
+     * Sets who receives the session events, or detaches the current listener when null.  Read
+     * getState() after attaching, events from before were not kept.
+     *
+     * @param handler Handler the listener is called on.
+     */
+    public void setListener(Listener listener, Handler handler) {
+        synchronized (this) {
+            mListenerHandler = handler;
+        }
+        mListener = listener;
+    }
+
+    /**
+     * Tells the session that a drive command was sent, so status polling gives way.  Any thread.
+     */
+    public void onControlActivity() {
+        mTelemetryPoller.onControlActivity();
+    }
+
+    /**
+     * Writes any unsaved metadata and stops the protocol thread.  No more listener calls are made.
+     */
+    public void close() {
+        mClosed = true;
+        mTransport.setReceiver(null);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mTelemetryPoller.stop();
+                cancelNameRetry();
+                mCommandClient.cancelAll();
+                if (mSavePending) {
+                    mSave.run();
+                }
+            }
+        });
+        mProtocolThread.shutdown();
+    }
+
+    @Override
+    public void onConnectionStateChanged(final int state) {
+        if (PfxTransport.STATE_CONNECTED != state) {                                                //Responses in flight are lost with the link
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    mTelemetryPoller.stop();
+                    cancelNameRetry();
+                    mCommandClient.cancelAll();
+                    mFrameParser.reset();
+                }
+            });
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = mListener;
+                if (!mClosed && null != listener) {
+                    listener.onConnectionStateChanged(state);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onReady() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                // The first status tells whether the cached metadata is still current.
+                mTelemetryPoller.start();
+                if (null != mMetadataFirmwareVersion && BrickState.UNKNOWN.equals(mBrickName)) {
+                    mNameRetries = 0;                                                               //The link went down before the name arrived
+                    requestName();
+                }
+            }
+        });
+        post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = mListener;
+                if (!mClosed && null != listener) {
+                    listener.onServicesDiscovered();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onData(final BufferPool.Buffer data) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mFrameParser.feed(data.data(), 0, data.length());
+                data.release();
+            }
+        });
+    }
+
+    @Override
+    public void onDeviceInformation(final String key, final BufferPool.Buffer value) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mCharacteristicValues.put(key, value.toText());
+                value.release();
+                publish();
+                scheduleSave();
+            }
+        });
+    }
+
+    private final PfxTelemetryPoller.Listener mTelemetryListener = new PfxTelemetryPoller.Listener() {
+        @Override
+        public void onStatus(byte[] response, int length) {
+            if (null != mStatus && mStatus.contentEquals(response)) {
+                return;                                                                             //Nothing changed, nothing to decode or publish
+            }
+            mStatus = PfxStatus.copyOf(response);                                                   //The response is in the parser's scratch array
+            mHardwareVersion = mStatus.getProductIdText();
+            mFirmwareVersion = mStatus.getFirmwareVersionText();
+            publish();
+            if (!BrickMetadataStore.isStale(mMetadataFirmwareVersion, mFirmwareVersion)) {
+                return;                                                                             //Current, or already being read
+            }
+            // New brick or new firmware, read everything again.
+            mMetadataFirmwareVersion = mFirmwareVersion;
+            mNameRetries = 0;
+            cancelNameRetry();
+            requestName();
+            mTransport.requestDeviceInformation();
+            scheduleSave();
+        }
+
+        @Override
+        public void onPollFailed(int reason) {
+            onRequestFailed("status", reason);
+        }
+    };
+
+    private final PfxCommandClient.ResponseCallback mNameCallback = new PfxCommandClient.ResponseCallback() {
+        @Override
+        public void onResponse(byte[] response, int length) {
+            mBrickName = PfxProtocol.brickName(response);
+            publish();
+            scheduleSave();
+        }
+
+        @Override
+        public void onFailure(int reason) {
+            onRequestFailed("name", reason);
+            if (PfxCommandClient.FAILURE_CANCELLED == reason || mNameRetries >= NAME_MAX_RETRIES) {
+                return;                                                                             //Link is down, or the brick is not answering
+            }
+            final long delay = NAME_RETRY_BASE_DELAY << mNameRetries++;
+            mNameRetry = mProtocolThread.schedule(mRequestName, delay, TimeUnit.MILLISECONDS);
+        }
+    };
+
+    private final Runnable mRequestName = new Runnable() {
+        @Override
+        public void run() {
+            mNameRetry = null;
+            requestName();
+        }
+    };
+
+    private void requestName() {
+        mCommandClient.request(PfxCodec.nameFrame(), mNameCallback);
+    }
+
+    private void cancelNameRetry() {
+        if (null != mNameRetry) {
+            mNameRetry.cancel(false);
+            mNameRetry = null;
+        }
+    }
+
+    // A part of the lost response may still sit in the parser.  It is only dropped while no other
+    // response is due, the bytes buffered could just as well be the start of one of those.
+    private void onRequestFailed(String request, int reason) {
+        if (PfxCommandClient.FAILURE_TIMEOUT == reason) {
+            Log.w(TAG, "No response to PFx " + request + " request");
+            if (mCommandClient.getOutstandingCount() == 0) {                                        //Called before the next request is sent
+                mFrameParser.reset();
+            }
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mProtocolThread.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            Log.d(TAG, "Session closed, event dropped");
+        }
+    }
+
+    // Writes the metadata a little later, together with any other updates that arrive meanwhile.
+    private void scheduleSave() {
+        if (!mSavePending) {
+            mSavePending = true;
+            mProtocolThread.schedule(mSave, SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            if (mSavePending) {
+                mSavePending = false;
+                mStore.save(snapshot());                                                            //Already off the main thread
+            }
+        }
+    };
+
+    private BrickState snapshot() {
+        return new BrickState(mDeviceAddress, mBrickName, mFirmwareVersion, mHardwareVersion, mCharacteristicValues, mStatus);
+    }
+
+    // Takes a snapshot and posts it to the listener, unless an update is already waiting to run.
+    private void publish() {
+        mState = snapshot();
+        if (mUpdatePending.compareAndSet(false, true) && !post(mDeliverState)) {
+            mUpdatePending.set(false);                                                              //Nobody attached
+        }
+    }
+
+    // Posts a listener call to the listener's handler.  Returns false if no listener is attached.
+    private boolean post(Runnable call) {
+        synchronized (this) {
+            return null != mListenerHandler && mListenerHandler.post(call);
+        }
+    }
+
+    private final Runnable mDeliverState = new Runnable() {
+        @Override
+        public void run() {
+            mUpdatePending.set(false);
+            Listener listener = mListener;
+            if (!mClosed && null != listener) {
+                listener.onBrickStateChanged(mState);
+            }
+        }
+    };
+}
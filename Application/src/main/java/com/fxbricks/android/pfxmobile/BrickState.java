@@ -0,0 +1,106 @@
+package com.fxbricks.android.pfxmobile;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of what is known about a connected PFx Brick.  {@link BrickSession} publishes
+ * a new one whenever the session state changes, so it can be read on any thread.
+ */
+public class BrickState {
+    public static final String UNKNOWN = "...";
+
+    // Fields reported by changedFields()
+    public static final int FIELD_BRICK_NAME = 0x01;
+    public static final int FIELD_FIRMWARE_VERSION = 0x02;
+    public static final int FIELD_HARDWARE_VERSION = 0x04;
+    public static final int FIELD_CHARACTERISTIC_VALUES = 0x08;
+    public static final int FIELD_STATUS = 0x10;
+    public static final int ALL_FIELDS = 0x1F;
+
+    private final String mDeviceAddress;
+    private final String mBrickName;
+    private final String mFirmwareVersion;
+    private final String mHardwareVersion;
+    private final Map<String, String> mCharacteristicValues;
+    private final PfxStatus mStatus;
+
+    public BrickState(String deviceAddress, String brickName, String firmwareVersion, String hardwareVersion, Map<String, String> characteristicValues) {
+        this(deviceAddress, brickName, firmwareVersion, hardwareVersion, characteristicValues, null);
+    }
+
+    public BrickState(String deviceAddress, String brickName, String firmwareVersion, String hardwareVersion, Map<String, String> characteristicValues, PfxStatus status) {
+        mDeviceAddress = deviceAddress;
+        mBrickName = brickName;
+        mFirmwareVersion = firmwareVersion;
+        mHardwareVersion = hardwareVersion;
+        mCharacteristicValues = Collections.unmodifiableMap(new HashMap<>(characteristicValues));
+        mStatus = status;
+    }
+
+    /**
+     * @return The FIELD_ bits of the fields that differ from the previous state, 0 if none does.
+     */
+    public int changedFields(BrickState previous) {
+        if (null == previous) {
+            return ALL_FIELDS;
+        }
+        int changed = 0;
+        if (!mBrickName.equals(previous.mBrickName)) {
+            changed |= FIELD_BRICK_NAME;
+        }
+        if (!mFirmwareVersion.equals(previous.mFirmwareVersion)) {
+            changed |= FIELD_FIRMWARE_VERSION;
+        }
+        if (!mHardwareVersion.equals(previous.mHardwareVersion)) {
+            changed |= FIELD_HARDWARE_VERSION;
+        }
+        if (!mCharacteristicValues.equals(previous.mCharacteristicValues)) {
+            changed |= FIELD_CHARACTERISTIC_VALUES;
+        }
+        if (mStatus != previous.mStatus && (null == mStatus || !mStatus.contentEquals(previous.mStatus))) {
+            changed |= FIELD_STATUS;
+        }
+        return changed;
+    }
+
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    public String getBrickName() {
+        return mBrickName;
+    }
+
+    public String getFirmwareVersion() {
+        return mFirmwareVersion;
+    }
+
+    public String getHardwareVersion() {
+        return mHardwareVersion;
+    }
+
+    /**
+     * @return The last status read from the brick in this session, or null if none was read yet.
+     */
+    public PfxStatus getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return Text values of the characteristics read from the brick, keyed by UUID.
+     */
+    public Map<String, String> getCharacteristicValues() {
+        return mCharacteristicValues;
+    }
+
+    /**
+     * @return The text value of a characteristic read from the brick, or UNKNOWN if it has not
+     *         been read.
+     */
+    public String getCharacteristicValue(String uuid) {
+        String value = mCharacteristicValues.get(uuid);
+        return null != value ? value : UNKNOWN;
+    }
+}
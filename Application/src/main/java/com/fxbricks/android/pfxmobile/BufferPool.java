@@ -0,0 +1,128 @@
+package com.fxbricks.android.pfxmobile;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable byte buffers for the notification path.
+ *
+ * Buffers are reference counted: {@link #obtain(byte[])} returns a buffer holding one reference,
+ * every additional consumer calls {@link Buffer#retain()}, and every holder calls
+ * {@link Buffer#release()} when done.  The buffer goes back to the pool when the last reference
+ * is released, so it must not be touched after that.
+ */
+public class BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 512;                                              //Largest attribute value allowed by ATT
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    public static class Buffer {
+        private final BufferPool mPool;
+        private final byte[] mData;
+        private int mLength;
+        private final AtomicInteger mReferences = new AtomicInteger();
+
+        private Buffer(BufferPool pool, int size) {
+            mPool = pool;
+            mData = new byte[size];
+        }
+
+        /**
+         * @return The backing array.  Only the first {@link #length()} bytes are valid.
+         */
+        public byte[] data() {
+            return mData;
+        }
+
+        public int length() {
+            return mLength;
+        }
+
+        public Buffer retain() {
+            mReferences.incrementAndGet();
+            return this;
+        }
+
+        public void release() {
+            if (mReferences.decrementAndGet() == 0 && mPool != null) {
+                mPool.recycle(this);
+            }
+        }
+
+        public byte[] toByteArray() {
+            byte[] copy = new byte[mLength];
+            System.arraycopy(mData, 0, copy, 0, mLength);
+            return copy;
+        }
+
+        /**
+         * @return The contents decoded as UTF-8 text.  Formats on every call, for display only.
+         */
+        public String toText() {
+            return new String(mData, 0, mLength, UTF_8);
+        }
+
+        /**
+         * @return The contents as space separated hex bytes.  Formats on every call, for display only.
+         */
+        public String toHexString() {
+            char[] text = new char[mLength * 3];
+            for (int i = 0; i < mLength; i++) {
+                text[i * 3] = HEX_DIGITS[(mData[i] >> 4) & 0x0F];
+                text[i * 3 + 1] = HEX_DIGITS[mData[i] & 0x0F];
+                text[i * 3 + 2] = ' ';
+            }
+            return new String(text);
+        }
+    }
+
+    private final int mBufferSize;
+    private final Buffer[] mFree;
+    private int mFreeCount = 0;
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_POOL_SIZE);
+    }
+
+    public BufferPool(int bufferSize, int poolSize) {
+        mBufferSize = bufferSize;
+        mFree = new Buffer[poolSize];
+    }
+
+    /**
+     * @return A buffer holding a copy of the source bytes and a single reference.
+     */
+    public Buffer obtain(byte[] source) {
+        return obtain(source, 0, source.length);
+    }
+
+    public Buffer obtain(byte[] source, int offset, int length) {
+        Buffer buffer = null;
+        if (length <= mBufferSize) {
+            synchronized (this) {
+                if (mFreeCount > 0) {
+                    buffer = mFree[--mFreeCount];
+                    mFree[mFreeCount] = null;
+                }
+            }
+            if (buffer == null) {
+                buffer = new Buffer(this, mBufferSize);                                             //Pool is empty, it grows back to its size through recycle()
+            }
+        }
+        else {
+            buffer = new Buffer(null, length);                                                      //Oversized, never pooled
+        }
+        System.arraycopy(source, offset, buffer.mData, 0, length);
+        buffer.mLength = length;
+        buffer.mReferences.set(1);
+        return buffer;
+    }
+
+    private synchronized void recycle(Buffer buffer) {
+        if (mFreeCount < mFree.length) {
+            mFree[mFreeCount++] = buffer;
+        }
+    }
+}
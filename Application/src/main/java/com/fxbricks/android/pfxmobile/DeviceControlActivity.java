@@ -19,14 +19,11 @@ package com.fxbricks.android.pfxmobile;
 import android.app.Activity;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.support.annotation.NonNull;
 import android.support.design.widget.BottomNavigationView;
@@ -53,96 +50,39 @@ import java.util.List;
  * Bluetooth LE API.
  */
 public class DeviceControlActivity extends AppCompatActivity {
-    private static byte PFX_CMD_GET_STATUS = 0x01;
-    private static byte PFX_CMD_GET_NAME = 0x07;
-
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
 
-    private byte currentPFxResponse = 0;
-    List<Byte> pfxResponseData = new ArrayList<Byte>();
-
+    // Shared precomputed frame, must not be modified
     public static final byte[] pfxRemoteCommand(int event, int channel) {
-        byte[] command = {0x5b, 0x5b, 0x5b, 0x15, 0, 0x5d, 0x5d, 0x5d};
-        command[4] = (byte) (event | channel);
-        return command;
+        return PfxCodec.remoteEventFrame(event, channel);
     }
 
     public void sendPFxCommand(byte[] data) {
-        mBluetoothLeService.writeMLDP(data);
-    }
-    public void pushPFxCommand( byte[] data ){
-        pfxCommandStack.add( data );
-    }
-
-    private boolean processPFxStatusResponse() {
-        boolean result = false;
-        if( pfxResponseData.size() > 40 )
-        {
-            mHardwareVersion = String.format( "%X", ( ( pfxResponseData.get(7) & 0xFF ) << 0x08 ) + ( pfxResponseData.get(8) & 0xFF ) );
-            mFirmwareVersion = String.format("%X.%02X", pfxResponseData.get(37) & 0xFF, pfxResponseData.get(38) & 0xFF );
-            result = true;
+        if (null != mTransport) {
+            mBrickSession.onControlActivity();                                                      //Telemetry polling gives way to the controls
+            mTransport.send(data);
         }
-
-        return result;
     }
 
-    private boolean processPFxNameResponse() {
-        boolean result = false;
-        if( pfxResponseData.size() > 24 )
-        {
-            mBrickName = "";
-            for (int i = 1; (i < pfxResponseData.size()) && pfxResponseData.get(i) != 0; i++) {
-//                    mBrickName += new String( inData[i], "UTF-8" );
-                mBrickName += String.format("%c", pfxResponseData.get(i));
+    // Sends the command to every brick of the group at once, see BluetoothLeService.setGroup().
+    public void sendPFxCommandToGroup(String group, byte[] data) {
+        if (null != mBluetoothLeService) {
+            if (null != mBrickSession) {
+                mBrickSession.onControlActivity();
             }
-            getSupportActionBar().setTitle(mBrickName);
-            SharedPreferences sharedPref = getSharedPreferences("com.fxbricks.pfxmobile.CACHED_BRICK_INFO", Context.MODE_PRIVATE );
-            SharedPreferences.Editor editor = sharedPref.edit();
-            editor.putString( mDeviceAddress, mBrickName );
-            editor.commit();
-            Fragment deviceFragment = getSupportFragmentManager().findFragmentByTag("DEVICE_FRAGMENT");
-            if (null != deviceFragment && deviceFragment.isVisible()) {
-                ((DeviceInfoFragment) deviceFragment).refreshData();
-            }
-            result = true;
-        }
-
-        return result;
-    }
-
-    private void processPFxResponse(byte[] inData) {
-        if( 0 == currentPFxResponse ) {
-            currentPFxResponse = inData[0];
-            pfxResponseData.clear();
-        }
-
-        for (byte value : inData) {
-            pfxResponseData.add(value);
-        }
-
-        boolean result = true;
-        if( currentPFxResponse == ( byte )( PFX_CMD_GET_STATUS | 0x80 ) ) {
-            result = processPFxStatusResponse();
-        }
-        else if( ( byte )( PFX_CMD_GET_NAME | 0x80 ) == currentPFxResponse ) {
-            result = processPFxNameResponse();
-        }
-
-        if( result ) {
-            currentPFxResponse = 0;
-            processPendingCommands();
+            mBluetoothLeService.writeGroup(group, data);
         }
     }
 
     //    private TextView mDataField;
     private String mDeviceAddress = "...";
     private String mDeviceName = "...";
-    private String mBrickName = "...";
-    private String mFirmwareVersion = "...";
-    private String mHardwareVersion = "...";
+    private BrickSession mBrickSession;
+    private PfxTransport mTransport;                                                                //Link to the brick the session talks through
+    private BrickState mBrickState;                                                                 //Latest snapshot published by the session
 
     public String getDeviceAddress() {
         return mDeviceAddress;
@@ -151,15 +91,14 @@ public class DeviceControlActivity extends AppCompatActivity {
         return mDeviceName;
     }
     public String getBrickName() {
-        return mBrickName;
+        return mBrickState.getBrickName();
     }
-    public String getFirmwareVersion() { return mFirmwareVersion; }
-    public String getHardwareVersion() { return mHardwareVersion; }
-
-    private static HashMap<String, String> gattValues = new HashMap();
+    public String getFirmwareVersion() { return mBrickState.getFirmwareVersion(); }
+    public String getHardwareVersion() { return mBrickState.getHardwareVersion(); }
+    public PfxStatus getStatus() { return mBrickState.getStatus(); }
 
     public String getGATTValue(String inUUID) {
-        return gattValues.get(inUUID);
+        return mBrickState.getCharacteristicValue(inUUID);
     }
 
     //    private ExpandableListView mGattServicesList;
@@ -176,9 +115,6 @@ public class DeviceControlActivity extends AppCompatActivity {
 //    private final String LIST_NAME = "NAME";
 //    private final String LIST_UUID = "UUID";
 
-    private List<BluetoothGattCharacteristic> gattCharsToRead = new ArrayList<>();
-    private List<byte[]> pfxCommandStack = new ArrayList<>();
-
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
@@ -188,7 +124,20 @@ public class DeviceControlActivity extends AppCompatActivity {
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
+                return;
+            }
+            // The service keeps the session and the connection, so after a rotation this picks up
+            // where the previous Activity left off.
+            mBrickSession = mBluetoothLeService.openSession(mDeviceAddress, mDeviceName);
+            if (null == mBrickSession) {
+                Log.e(TAG, "Unable to add " + mDeviceAddress + " to the connection pool");
+                finish();
+                return;
             }
+            mTransport = mBluetoothLeService.getTransport(mDeviceAddress);
+            mBrickSession.setListener(mSessionListener, mHandler);
+            mSessionListener.onBrickStateChanged(mBrickSession.getState());
+            invalidateOptionsMenu();
             // Automatically connects to the device upon successful start-up initialization.
             connectToDevice();
         }
@@ -199,21 +148,18 @@ public class DeviceControlActivity extends AppCompatActivity {
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles the events of the brick session, on the main thread.
+    // onConnectionStateChanged: connected to or disconnected from a GATT server.
+    // onServicesDiscovered: discovered GATT services.
+    // onBrickStateChanged: new name, versions or device information for the brick.
+    private final BrickSession.Listener mSessionListener = new BrickSession.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
+        public void onConnectionStateChanged(int state) {
+            if (BluetoothLeService.STATE_CONNECTED == state) {
                 mConnectionStatus = BluetoothLeService.STATE_CONNECTED;
                 updateConnectionStatus();
                 invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
+            } else if (BluetoothLeService.STATE_DISCONNECTED == state) {
                 mConnectionStatus = BluetoothLeService.STATE_DISCONNECTED;
 
                 Fragment deviceFragment = DeviceInfoFragment.newInstance();
@@ -221,26 +167,37 @@ public class DeviceControlActivity extends AppCompatActivity {
                 transaction.replace(R.id.frame_layout, deviceFragment, "DEVICE_FRAGMENT");
                 transaction.commit();
 
-                gattValues.put(SampleGattAttributes.SERIAL_NUMBER, "...");
-
                 updateConnectionStatus();
                 invalidateOptionsMenu();
 //                clearUI();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                getDeviceInformation();
-//                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                String extraUUID = intent.getStringExtra(BluetoothLeService.EXTRA_UUID);
-                if (extraUUID.equals(SampleGattAttributes.MLDP_DATA_PRIVATE_CHAR) || extraUUID.equals(SampleGattAttributes.TRANSPARENT_TX_PRIVATE_CHAR)) {
-                    processPFxResponse(intent.getByteArrayExtra(BluetoothLeService.EXTRA_DATA));
-                } else {
-                    displayData(extraUUID, intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
-                }
+            } else if (BluetoothLeService.STATE_RECONNECTING == state) {
+                mConnectionStatus = BluetoothLeService.STATE_RECONNECTING;                          //Keep the controls, the link is coming back
+                updateConnectionStatus();
+                invalidateOptionsMenu();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+//            displayGattServices(mBluetoothLeService.getSupportedGattServices());
+        }
+
+        @Override
+        public void onBrickStateChanged(BrickState state) {
+            final int changedFields = state.changedFields(mBrickState);
+            if (0 != (changedFields & BrickState.FIELD_BRICK_NAME)) {
+                getSupportActionBar().setTitle(state.getBrickName());
+            }
+            mBrickState = state;
+            Fragment deviceFragment = getSupportFragmentManager().findFragmentByTag("DEVICE_FRAGMENT");
+            if (0 != changedFields && null != deviceFragment && deviceFragment.isVisible()) {
+                ((DeviceInfoFragment) deviceFragment).refreshFields(changedFields);                //Only the views showing what changed
             }
         }
     };
 
+    private final Handler mHandler = new Handler();
+
 //    // If a given GATT characteristic is selected, check for supported features.  This sample
 //    // demonstrates 'Read' and 'Notify' features.  See
 //    // http://d.android.com/reference/android/bluetooth/BluetoothGatt.html for the complete
@@ -290,7 +247,7 @@ public class DeviceControlActivity extends AppCompatActivity {
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
 
-        gattValues.put(SampleGattAttributes.SERIAL_NUMBER, "...");
+        mBrickState = new BrickState(mDeviceAddress, BrickState.UNKNOWN, BrickState.UNKNOWN, BrickState.UNKNOWN, new HashMap<String, String>()); //Until the service is bound
 
         BottomNavigationView bottomNavigationView = (BottomNavigationView) findViewById(R.id.navigation);
         bottomNavigationView.setOnNavigationItemSelectedListener
@@ -321,9 +278,11 @@ public class DeviceControlActivity extends AppCompatActivity {
                 });
 
         //Manually displaying the first fragment - one time only
-        FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
-        transaction.replace(R.id.frame_layout, DeviceInfoFragment.newInstance(), "DEVICE_FRAGMENT");
-        transaction.commit();
+        if (null == savedInstanceState) {                                                           //Otherwise the fragment manager restores the one shown
+            FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
+            transaction.replace(R.id.frame_layout, DeviceInfoFragment.newInstance(), "DEVICE_FRAGMENT");
+            transaction.commit();
+        }
 
         // Sets up UI references.
 //        mGattServicesList = (ExpandableListView) findViewById(R.id.gatt_services_list);
@@ -334,40 +293,43 @@ public class DeviceControlActivity extends AppCompatActivity {
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
 
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        startService(gattServiceIntent);                                                            //Keeps the service alive between this Activity and the next
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
             connectToDevice();
         }
     }
 
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBrickSession != null) {
+            mBrickSession.setListener(null, null);
+        }
+        if (mBluetoothLeService != null && isFinishing()) {
+            mBluetoothLeService.disconnect(mDeviceAddress);                                         //Leaving the brick, not just being recreated
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
+        mTransport = null;
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.gatt_services, menu);
-        if (mConnectionStatus == BluetoothLeService.STATE_CONNECTED) {
+        if (mConnectionStatus == BluetoothLeService.STATE_CONNECTED || mConnectionStatus == BluetoothLeService.STATE_RECONNECTING) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
+            menu.findItem(R.id.menu_stop_all).setVisible(true);
         } else {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
+            menu.findItem(R.id.menu_stop_all).setVisible(false);
         }
         return true;
     }
@@ -379,7 +341,10 @@ public class DeviceControlActivity extends AppCompatActivity {
                 connectToDevice();
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
+                return true;
+            case R.id.menu_stop_all:
+                mTransport.stopAll();
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -395,65 +360,18 @@ public class DeviceControlActivity extends AppCompatActivity {
         // Get the active fragment, and tell it and update is available.
         Fragment deviceFragment = getSupportFragmentManager().findFragmentByTag("DEVICE_FRAGMENT");
         if (null != deviceFragment && deviceFragment.isVisible()) {
-            ((DeviceInfoFragment) deviceFragment).refreshData();
+            ((DeviceInfoFragment) deviceFragment).refreshConnectionState();
         }
 //            }
 //        });
     }
 
-    private void displayData(String inUUID, String inData) {
-        gattValues.put(inUUID, inData);
-
-//        final GattInfoChar infoChar = new GattInfoChar(inUUID, inData);
-//        mCharAdapter.addChar( infoChar );
-//        mCharAdapter.notifyDataSetChanged();
-
-        processPendingCommands();
-
-        Fragment deviceFragment = getSupportFragmentManager().findFragmentByTag("DEVICE_FRAGMENT");
-        if (null != deviceFragment && deviceFragment.isVisible()) {
-            ((DeviceInfoFragment) deviceFragment).refreshData();
-        }
-    }
 //    private void displayData(String data) {
 //        if (data != null) {
 //            mDataField.setText(data);
 //        }
 //    }
 
-    private void processPendingCommands() {
-        if( pfxCommandStack.size() > 0 ) {
-            sendPFxCommand(pfxCommandStack.get(0));
-            pfxCommandStack.remove(0);
-        }
-        else if (gattCharsToRead.size() > 0) {
-            gattCharsToRead.remove(gattCharsToRead.size() - 1);
-            if (gattCharsToRead.size() > 0) {
-                mBluetoothLeService.readCharacteristic(gattCharsToRead.get(gattCharsToRead.size() - 1));
-            }
-        }
-    }
-
-    private void getDeviceInformation() {
-        // Queue up device information characteristics to read, but don't read them until after
-        // we get the PFx Brick name.
-        BluetoothGattService informationService = mBluetoothLeService.getInformationService();
-        if (informationService != null) {
-            List<BluetoothGattCharacteristic> gattCharacteristics = informationService.getCharacteristics();
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                gattCharsToRead.add(gattCharacteristic);
-            }
-        }
-
-        byte[] command = {0x5b, 0x5b, 0x5b, PFX_CMD_GET_NAME, 0x5d, 0x5d, 0x5d};
-        pushPFxCommand( command );
-
-        byte[] getStatus = {0x5b, 0x5b, 0x5b, PFX_CMD_GET_STATUS, (byte)0xa5, 0x5a, 0x6e, 0x40, 0x54, (byte)0xa4, (byte)0xe5, 0x5d, 0x5d, 0x5d };
-        pushPFxCommand( getStatus );
-
-        processPendingCommands();
-    }
-
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
     // In this sample, we populate the data structure that is bound to the ExpandableListView
     // on the UI.
@@ -511,15 +429,6 @@ public class DeviceControlActivity extends AppCompatActivity {
 //        mGattServicesList.setAdapter(gattServiceAdapter);
 //    }
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
-
     public interface DataInterface {
         void refreshData();
     }
@@ -530,7 +439,7 @@ public class DeviceControlActivity extends AppCompatActivity {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
 
-            mConnectionStatus = BluetoothLeService.STATE_CONNECTING;
+            mConnectionStatus = mBluetoothLeService.getConnectionState(mDeviceAddress);             //Stays connected if the link is already up
             updateConnectionStatus();
         }
     }
@@ -30,6 +30,11 @@ public class DeviceInfoFragment extends Fragment implements DeviceControlActivit
     }
 
     public void refreshData() {
+        refreshConnectionState();
+        refreshFields(BrickState.ALL_FIELDS);
+    }
+
+    public void refreshConnectionState() {
         DeviceControlActivity activity = (DeviceControlActivity) getActivity();
         if (null != activity) {
 //            TextView deviceAddressView = (TextView) getView().findViewById(R.id.bluetooth_address);
@@ -44,16 +49,59 @@ public class DeviceInfoFragment extends Fragment implements DeviceControlActivit
                 case BluetoothLeService.STATE_CONNECTING:
                     ((TextView) getView().findViewById(R.id.connection_state)).setText( R.string.connecting );
                     break;
+                case BluetoothLeService.STATE_RECONNECTING:
+                    ((TextView) getView().findViewById(R.id.connection_state)).setText( R.string.reconnecting );
+                    break;
                 case BluetoothLeService.STATE_DISCONNECTED:
                     ((TextView) getView().findViewById(R.id.connection_state)).setText( R.string.disconnected );
                     break;
             }
+        }
+    }
+
+    /**
+     * Updates the views showing the given fields, the status is polled continuously and most
+     * updates only touch one or two of them.
+     *
+     * @param changedFields BrickState.FIELD_ bits.
+     */
+    public void refreshFields(int changedFields) {
+        DeviceControlActivity activity = (DeviceControlActivity) getActivity();
+        if (null == activity) {
+            return;
+        }
+        // Fields of the status read in this session, fields cached from an earlier one until then
+        final PfxStatus status = activity.getStatus();
+        final boolean statusChanged = 0 != (changedFields & BrickState.FIELD_STATUS);
 
+        if (0 != (changedFields & BrickState.FIELD_BRICK_NAME)) {
             ((TextView) getView().findViewById(R.id.name_value)).setText( activity.getBrickName() );
-            ((TextView) getView().findViewById(R.id.model_value)).setText( activity.getDeviceName() );
-            ((TextView) getView().findViewById(R.id.serial_number_value)).setText( activity.getGATTValue(SampleGattAttributes.SERIAL_NUMBER) );
-            ((TextView) getView().findViewById(R.id.hardware_version_value)).setText( activity.getHardwareVersion() );
-            ((TextView) getView().findViewById(R.id.firmware_version_value)).setText( activity.getFirmwareVersion() );
+        }
+        if (statusChanged) {
+            String model = null != status ? status.getProductDescription() : "";
+            ((TextView) getView().findViewById(R.id.model_value)).setText( model.isEmpty() ? activity.getDeviceName() : model );
+            if (null == status) {
+                ((TextView) getView().findViewById(R.id.error_value)).setText( R.string.no_data );
+            }
+            else if (0 == status.getErrorCode()) {
+                ((TextView) getView().findViewById(R.id.error_value)).setText( R.string.no_error );
+            }
+            else {
+                ((TextView) getView().findViewById(R.id.error_value)).setText( String.format("0x%02X", status.getErrorCode()) );
+            }
+        }
+        if (statusChanged || 0 != (changedFields & BrickState.FIELD_HARDWARE_VERSION)) {
+            ((TextView) getView().findViewById(R.id.hardware_version_value)).setText( null != status ? status.getProductIdText() : activity.getHardwareVersion() );
+        }
+        if (statusChanged || 0 != (changedFields & BrickState.FIELD_FIRMWARE_VERSION)) {
+            ((TextView) getView().findViewById(R.id.firmware_version_value)).setText( null != status ? status.getFirmwareVersionText() : activity.getFirmwareVersion() );
+        }
+        if (statusChanged || 0 != (changedFields & BrickState.FIELD_CHARACTERISTIC_VALUES)) {
+            String serialNumber = activity.getGATTValue(SampleGattAttributes.SERIAL_NUMBER);
+            if (null != status && BrickState.UNKNOWN.equals(serialNumber)) {
+                serialNumber = status.getSerialNumberText();                                        //Device Information Service not read yet
+            }
+            ((TextView) getView().findViewById(R.id.serial_number_value)).setText( serialNumber );
         }
     }
-}
\ No newline at end of file
+}
@@ -27,7 +27,6 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -61,6 +60,7 @@ public class DeviceScanActivity extends AppCompatActivity {
     private BluetoothScanner mBluetoothScanner;
     private boolean mScanning;
     private Handler mHandler;
+    private BrickMetadataStore mMetadataStore;                                                      //Names of bricks seen before
 
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
@@ -103,6 +103,7 @@ public class DeviceScanActivity extends AppCompatActivity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mMetadataStore = new BrickMetadataStore(this);
         setContentView(R.layout.device_list);
         getSupportActionBar().setTitle(R.string.title_devices);
 
@@ -329,8 +330,7 @@ public class DeviceScanActivity extends AppCompatActivity {
             BluetoothDevice device = mLeDevices.get(i);
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0) {
-                SharedPreferences sharedPref = getSharedPreferences("com.fxbricks.pfxmobile.CACHED_BRICK_INFO", Context.MODE_PRIVATE );
-                String cachedName = sharedPref.getString( device.getAddress(), deviceName );
+                String cachedName = mMetadataStore.getBrickName( device.getAddress(), deviceName );
                 viewHolder.deviceName.setText(cachedName);
             }
             else
@@ -0,0 +1,740 @@
+package com.fxbricks.android.pfxmobile;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.UUID;
+
+/**
+ * Serializes every GATT operation of one connection on a dedicated thread.
+ *
+ * BluetoothGatt can only run one operation at a time and silently rejects anything issued while
+ * another one is outstanding.  All characteristic reads and writes, descriptor writes, notification
+ * changes and MTU requests therefore go through this queue.  Each operation has a timeout and an
+ * optional completion callback, which is invoked on the queue thread.
+ *
+ * Writes to characteristics using WRITE_TYPE_NO_RESPONSE are the one exception to strict
+ * serialization: up to a window of them may be outstanding at once, see {@link #setWriteWindow(int)}.
+ *
+ * Operations are started in priority order, lower values first, and in the order they were queued
+ * within a priority.  An operation that is already in flight is never preempted, and once the first
+ * fragment of a write has started nothing is queued between its remaining fragments.
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    public final static int STATUS_TIMEOUT = -1;                                                    //No callback arrived in time
+    public final static int STATUS_REJECTED = -2;                                                   //BluetoothGatt kept refusing to start the operation
+    public final static int STATUS_CANCELLED = -3;                                                  //Queue was reset, e.g. on disconnect
+
+    public final static int PRIORITY_HIGHEST = 0;
+    public final static int PRIORITY_DEFAULT = 2;                                                   //Same scale as the PfxCommandQueue priorities
+    public final static int PRIORITY_BACKGROUND = 3;                                                //Behind every PFx command, e.g. metadata reads
+
+    public final static int TAG_NONE = -1;
+    public final static int TAG_ANY = -2;                                                           //Matches every write that has a tag
+    public final static int MAX_TAG = 63;                                                           //Tags are bits of a long in cancelPendingWrites(long)
+
+    public final static int DEFAULT_ATT_MTU = 23;                                                   //ATT MTU every link starts with
+    private final static int ATT_WRITE_HEADER_SIZE = 3;                                             //Opcode + attribute handle in every ATT write
+
+    private final static int OPERATION_TIMEOUT = 2000;                                              //ms
+    private final static int DEFAULT_WRITE_WINDOW = 4;
+    private final static int MAX_POOLED_OPERATIONS = 16;                                            //More than a full write window of commands
+
+    // Rejected operations are retried from a timer.  The delay doubles with every attempt, and an
+    // operation that is still rejected after MAX_RETRIES is dropped.
+    private final static int RETRY_BASE_DELAY = 20;                                                 //ms
+    private final static int RETRY_MAX_DELAY = 320;                                                 //ms
+    private final static int MAX_RETRIES = 5;
+
+    private final static UUID UUID_CHAR_NOTIFICATION_DESCRIPTOR = UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    final static int OP_WRITE_CHARACTERISTIC = 0;
+    private final static int OP_READ_CHARACTERISTIC = 1;
+    private final static int OP_WRITE_DESCRIPTOR = 2;
+    private final static int OP_SET_NOTIFICATION = 3;
+    private final static int OP_REQUEST_MTU = 4;
+
+    // Result of trying to start an operation
+    private final static int START_REJECTED = 0;
+    private final static int START_PENDING = 1;                                                     //Started, completes in a GATT callback
+    private final static int START_DONE = 2;                                                        //Completed without going over the air
+
+    private final static int MSG_COMPLETE = 1;                                                      //arg1 operation type, arg2 status
+
+    public interface Callback {
+        /**
+         * @param status {@code BluetoothGatt.GATT_SUCCESS}, a GATT error status or one of the
+         *               {@code STATUS_} constants of this class.
+         */
+        void onOperationComplete(int status);
+    }
+
+    // Package-private, like the static helpers working on it, so that the ordering and windowing
+    // rules can be tested without a Looper or a BluetoothGatt.  Operations are recycled once they
+    // have finished, and an operation is posted to the queue thread as is to be queued there.
+    static class Operation implements Runnable {
+        int type;
+        Callback callback;
+        BluetoothGattCharacteristic characteristic;
+        BluetoothGattDescriptor descriptor;
+        byte[] value;
+        boolean enable;
+        int mtu;
+        int priority = PRIORITY_DEFAULT;
+        int tag = TAG_NONE;
+        int job;                                                                                    //Fragments of one write share a job
+        boolean firstFragment = true;
+        boolean lastFragment = true;                                                                //Only the last fragment reports success
+        boolean pipelined = false;                                                                  //Write without response, see isPipelined()
+        int retries = 0;
+        GattOperationQueue owner;                                                                   //Queue the operation is posted to
+        Operation nextFree;                                                                         //Link in the pool of recycled operations
+
+        Operation(int type, Callback callback) {
+            this.type = type;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            owner.onQueued(this);
+        }
+
+        // The write type is read when the write is queued; it is set once, at service discovery.
+        boolean isPipelined() {
+            return type == OP_WRITE_CHARACTERISTIC && pipelined;
+        }
+
+        // A fragment still waiting while earlier fragments of its write have been started.
+        boolean isContinuation() {
+            return type == OP_WRITE_CHARACTERISTIC && !firstFragment;
+        }
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Everything below is only touched on mThread
+    private final LinkedList<Operation> mPending = new LinkedList<>();
+    private final LinkedList<Operation> mInFlight = new LinkedList<>();
+    private BluetoothGatt mGatt;
+    private int mAttMtu = DEFAULT_ATT_MTU;
+    private int mWriteWindow = DEFAULT_WRITE_WINDOW;
+    private boolean mWritesSerialized = false;
+    private boolean mRetryScheduled = false;
+    private int mNextJob = 0;
+
+    // Recycled operations, taken on any thread and returned on mThread
+    private final Object mPoolLock = new Object();
+    private Operation mFreeOperations;
+    private int mFreeCount = 0;
+
+    private volatile int mRetryCount = 0;
+    private volatile int mDropCount = 0;
+    private volatile int mTimeoutCount = 0;
+    private volatile int mLastRetryDelay = 0;
+    private volatile boolean mIdle = true;
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRetryScheduled = false;
+            drain();
+        }
+    };
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Operation operation = mInFlight.poll();
+            if (operation == null) {
+                return;
+            }
+            Log.w(TAG, "GATT operation " + operation.type + " timed out");
+            mTimeoutCount++;
+            if (operation.isPipelined()) {
+                mWritesSerialized = true;                                                           //Lost a write callback, stop trusting the window
+            }
+            finish(operation, STATUS_TIMEOUT);
+            armTimeout();
+            drain();
+        }
+    };
+
+    // Completions arrive as pooled messages rather than as a Runnable per GATT callback
+    private final Handler.Callback mHandlerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message message) {
+            if (message.what != MSG_COMPLETE) {
+                return false;
+            }
+            complete(message.arg1, message.arg2);
+            return true;
+        }
+    };
+
+    public GattOperationQueue() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), mHandlerCallback);
+    }
+
+    /**
+     * Creates a queue that runs on an existing thread, e.g. one shared by the queues of several
+     * connections.  Operations of the different queues are then interleaved in the order their
+     * events arrive.
+     */
+    public GattOperationQueue(Looper looper) {
+        mThread = null;
+        mHandler = new Handler(looper, mHandlerCallback);
+    }
+
+    /**
+     * Cancels everything queued or in flight and starts over with a new connection.
+     *
+     * @param gatt The connection to run operations on, or null while disconnected.
+     */
+    public void reset(final BluetoothGatt gatt) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mRetryRunnable);
+                mHandler.removeCallbacks(mTimeoutRunnable);
+                mRetryScheduled = false;
+                mWritesSerialized = false;
+                mAttMtu = DEFAULT_ATT_MTU;
+                mGatt = gatt;
+                cancel(mInFlight);
+                cancel(mPending);
+                mIdle = true;
+            }
+        });
+    }
+
+    /**
+     * Stops the queue thread, unless it was given one.  The queue cannot be used afterwards.
+     */
+    public void quit() {
+        reset(null);
+        if (mThread != null) {
+            mThread.quitSafely();
+        }
+    }
+
+    /**
+     * Queues a write of a copy of the value, split into fragments that fit the ATT MTU.
+     */
+    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, Callback callback) {
+        writeCharacteristic(characteristic, value, PRIORITY_DEFAULT, TAG_NONE, callback);
+    }
+
+    /**
+     * Queues a write of a copy of the value, split into fragments that fit the ATT MTU.
+     *
+     * @param priority Lower values are started first.
+     * @param tag Identifies the write for {@link #cancelPendingWrites(int)}, 0 to MAX_TAG, or
+     *            TAG_NONE.
+     */
+    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                                    int priority, int tag, Callback callback) {
+        writeFrame(characteristic, value.clone(), priority, tag, callback);                          //Own the payload, the caller may reuse its array
+    }
+
+    /**
+     * Queues a write of the value itself, like {@link #writeCharacteristic(BluetoothGattCharacteristic,
+     * byte[], int, int, Callback)} but without taking a copy.  For values that are never modified,
+     * such as the shared {@link PfxCodec} frames and the frames queued in a PfxCommandQueue.
+     */
+    public void writeFrame(BluetoothGattCharacteristic characteristic, byte[] frame,
+                           int priority, int tag, Callback callback) {
+        Operation operation = obtain(OP_WRITE_CHARACTERISTIC, callback);
+        operation.characteristic = characteristic;
+        operation.value = frame;
+        operation.priority = priority;
+        operation.tag = tag;
+        enqueue(operation);
+    }
+
+    /**
+     * Removes queued writes with the given tag that have not started yet.  Their callbacks are
+     * invoked with STATUS_CANCELLED.  A write that has started sending its fragments is left alone.
+     *
+     * @param tag The tag the writes were queued with, or TAG_ANY for all tagged writes.
+     */
+    public void cancelPendingWrites(int tag) {
+        cancelPendingWrites(tag == TAG_ANY ? -1L : 1L << tag);
+    }
+
+    /**
+     * Removes queued writes with any of the given tags that have not started yet, like
+     * {@link #cancelPendingWrites(int)}.
+     *
+     * @param tags Bit mask of tags, bit n for tag n.
+     */
+    public void cancelPendingWrites(final long tags) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelPendingWrites(mPending, tags);
+            }
+        });
+    }
+
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic, Callback callback) {
+        readCharacteristic(characteristic, PRIORITY_DEFAULT, callback);
+    }
+
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic, int priority, Callback callback) {
+        Operation operation = obtain(OP_READ_CHARACTERISTIC, callback);
+        operation.characteristic = characteristic;
+        operation.priority = priority;
+        enqueue(operation);
+    }
+
+    public void writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, Callback callback) {
+        Operation operation = obtain(OP_WRITE_DESCRIPTOR, callback);
+        operation.descriptor = descriptor;
+        operation.value = value.clone();
+        enqueue(operation);
+    }
+
+    /**
+     * Enables or disables notification locally and, if the characteristic has a client
+     * configuration descriptor, on the remote device as well.
+     */
+    public void setNotification(BluetoothGattCharacteristic characteristic, boolean enable, Callback callback) {
+        Operation operation = obtain(OP_SET_NOTIFICATION, callback);
+        operation.characteristic = characteristic;
+        operation.enable = enable;
+        enqueue(operation);
+    }
+
+    /**
+     * Requests a larger ATT MTU.  Completes immediately with success below API 21, where the MTU
+     * cannot be negotiated.
+     */
+    public void requestMtu(int mtu, Callback callback) {
+        requestMtu(mtu, PRIORITY_DEFAULT, callback);
+    }
+
+    public void requestMtu(int mtu, int priority, Callback callback) {
+        Operation operation = obtain(OP_REQUEST_MTU, callback);
+        operation.mtu = mtu;
+        operation.priority = priority;
+        enqueue(operation);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Completion, called from the matching BluetoothGattCallback methods
+
+    public void onCharacteristicWrite(int status) {
+        postComplete(OP_WRITE_CHARACTERISTIC, status);
+    }
+
+    public void onCharacteristicRead(int status) {
+        postComplete(OP_READ_CHARACTERISTIC, status);
+    }
+
+    public void onDescriptorWrite(int status) {
+        postComplete(OP_WRITE_DESCRIPTOR, status);
+    }
+
+    public void onMtuChanged(final int mtu, final int status) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    Log.d(TAG, "ATT MTU changed to " + mtu);
+                    mAttMtu = mtu;                                                                  //Only affects writes fragmented from now on
+                }
+                complete(OP_REQUEST_MTU, status);
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Configuration and statistics
+
+    /**
+     * Sets how many write-without-response fragments may be outstanding in the stack at once.
+     *
+     * @param window Number of unacknowledged writes, 1 for strict serialization.
+     */
+    public void setWriteWindow(final int window) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWriteWindow = Math.max(1, window);
+            }
+        });
+    }
+
+    public int getWriteWindow() {
+        return mWriteWindow;
+    }
+
+    public int getAttMtu() {
+        return mAttMtu;
+    }
+
+    // Total number of retries scheduled.  A steadily climbing count means the link is saturated.
+    public int getRetryCount() {
+        return mRetryCount;
+    }
+
+    // Operations dropped after using up their retries.
+    public int getDropCount() {
+        return mDropCount;
+    }
+
+    public int getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    /**
+     * @return True when nothing is queued or in flight.
+     */
+    public boolean isIdle() {
+        return mIdle;
+    }
+
+    // Backoff delay of the most recently scheduled retry, in milliseconds.
+    public int getLastRetryDelay() {
+        return mLastRetryDelay;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    private void enqueue(Operation operation) {
+        operation.owner = this;
+        mHandler.post(operation);                                                                   //Runs onQueued() on mThread
+    }
+
+    // Called on mThread for every operation posted by enqueue().  The write type and the ATT MTU
+    // are only read here, so that a write is fragmented to the MTU in effect when it is queued.
+    private void onQueued(Operation operation) {
+        if (operation.type == OP_WRITE_CHARACTERISTIC) {
+            operation.pipelined = operation.characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+            operation.job = ++mNextJob;
+            final int fragmentSize = mAttMtu - ATT_WRITE_HEADER_SIZE;
+            if (operation.value.length > fragmentSize) {
+                queueFragments(operation, split(operation.value, fragmentSize));
+                drain();
+                return;
+            }
+        }
+        insert(mPending, operation);
+        drain();
+    }
+
+    // Queues the fragments of a write, the first one in the operation that was posted.
+    private void queueFragments(Operation write, byte[][] fragments) {
+        for (int i = 0; i < fragments.length; i++) {
+            Operation operation = i == 0 ? write : obtain(OP_WRITE_CHARACTERISTIC, write.callback);
+            operation.characteristic = write.characteristic;
+            operation.priority = write.priority;
+            operation.tag = write.tag;
+            operation.job = write.job;
+            operation.pipelined = write.pipelined;
+            operation.value = fragments[i];
+            operation.firstFragment = i == 0;
+            operation.lastFragment = i == fragments.length - 1;
+            insert(mPending, operation);
+        }
+    }
+
+    // Takes an operation from the pool, or creates one while the pool is empty.
+    private Operation obtain(int type, Callback callback) {
+        Operation operation;
+        synchronized (mPoolLock) {
+            operation = mFreeOperations;
+            if (operation != null) {
+                mFreeOperations = operation.nextFree;
+                mFreeCount--;
+            }
+        }
+        if (operation == null) {
+            return new Operation(type, callback);
+        }
+        operation.nextFree = null;
+        operation.type = type;
+        operation.callback = callback;
+        operation.enable = false;
+        operation.mtu = 0;
+        operation.priority = PRIORITY_DEFAULT;
+        operation.tag = TAG_NONE;
+        operation.job = 0;
+        operation.firstFragment = true;
+        operation.lastFragment = true;
+        operation.pipelined = false;
+        operation.retries = 0;
+        return operation;
+    }
+
+    // Returns a finished operation to the pool.  Only called on mThread, once the operation is in
+    // neither list.  Operations cancelled by cancelPendingWrites() are left to the garbage collector.
+    private void recycle(Operation operation) {
+        operation.callback = null;                                                                  //Drop references the pool would keep alive
+        operation.characteristic = null;
+        operation.descriptor = null;
+        operation.value = null;
+        operation.owner = null;
+        synchronized (mPoolLock) {
+            if (mFreeCount < MAX_POOLED_OPERATIONS) {
+                operation.nextFree = mFreeOperations;
+                mFreeOperations = operation;
+                mFreeCount++;
+            }
+        }
+    }
+
+    // Queues the operation behind everything of the same or higher priority, but never between the
+    // fragments of a write that has started: the PFx Brick reassembles a command from consecutive
+    // writes, so anything sent in between would corrupt it.
+    static void insert(LinkedList<Operation> pending, Operation operation) {
+        final int started = startedJob(pending);
+        ListIterator<Operation> iterator = pending.listIterator(pending.size());
+        while (iterator.hasPrevious()) {
+            final Operation previous = iterator.previous();
+            if (previous.priority <= operation.priority
+                    || (previous.type == OP_WRITE_CHARACTERISTIC && previous.job == started)) {
+                iterator.next();
+                break;
+            }
+        }
+        iterator.add(operation);
+    }
+
+    // Removes the tagged writes that have not started and whose tag is in the mask.
+    static void cancelPendingWrites(LinkedList<Operation> pending, long tags) {
+        final int started = startedJob(pending);
+        Iterator<Operation> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Operation operation = iterator.next();
+            if (operation.type == OP_WRITE_CHARACTERISTIC && operation.tag != TAG_NONE
+                    && (tags & 1L << operation.tag) != 0 && operation.job != started) {
+                iterator.remove();
+                if (operation.lastFragment) {
+                    notifyCallback(operation, STATUS_CANCELLED);
+                }
+            }
+        }
+    }
+
+    // Job of the write whose remaining fragments are at the head of the queue, or 0.  Fragments of
+    // a write are queued together and started in order, so once its first fragment has gone the
+    // rest stay at the head until they are sent as well.
+    static int startedJob(LinkedList<Operation> pending) {
+        final Operation head = pending.peek();
+        return head != null && head.isContinuation() ? head.job : 0;
+    }
+
+    // Splits a write into values that fit a single ATT write.  A value that fits is not copied.
+    static byte[][] split(byte[] payload, int fragmentSize) {
+        final int count = Math.max(1, (payload.length + fragmentSize - 1) / fragmentSize);
+        if (count == 1) {
+            return new byte[][]{payload};
+        }
+        final byte[][] fragments = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            fragments[i] = Arrays.copyOfRange(payload, i * fragmentSize, Math.min(payload.length, (i + 1) * fragmentSize));
+        }
+        return fragments;
+    }
+
+    private void postComplete(int type, int status) {
+        mHandler.obtainMessage(MSG_COMPLETE, type, status).sendToTarget();
+    }
+
+    private void complete(int type, int status) {
+        Operation operation = mInFlight.peek();
+        if (operation == null || completionType(operation) != type) {
+            Log.w(TAG, "Ignoring completion of GATT operation " + type + " that is not in flight");
+            return;
+        }
+        mInFlight.poll();
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "GATT operation " + operation.type + " failed with status: " + status);
+        }
+        finish(operation, status);
+        if (mInFlight.isEmpty() && mPending.isEmpty() && mWritesSerialized) {
+            Log.d(TAG, "Queue drained, re-enabling pipelined writes");
+            mWritesSerialized = false;
+        }
+        armTimeout();
+        drain();
+    }
+
+    private static int completionType(Operation operation) {
+        return operation.type == OP_SET_NOTIFICATION ? OP_WRITE_DESCRIPTOR : operation.type;
+    }
+
+    private void drain() {
+        startOperations();
+        mIdle = mPending.isEmpty() && mInFlight.isEmpty();
+    }
+
+    // Starts operations from the head of the queue for as long as they may run concurrently with
+    // what is already in flight.
+    private void startOperations() {
+        if (mRetryScheduled || mGatt == null) {
+            return;                                                                                 //Backing off, mRetryRunnable picks the queue up again
+        }
+        Operation operation;
+        while ((operation = mPending.peek()) != null && canStart(operation)) {
+            final int result = start(operation);
+            if (result != START_REJECTED) {
+                mPending.poll();
+                if (result == START_DONE) {
+                    finish(operation, BluetoothGatt.GATT_SUCCESS);
+                }
+                else {
+                    mInFlight.add(operation);
+                    if (mInFlight.size() == 1) {
+                        armTimeout();
+                    }
+                }
+                continue;
+            }
+            if (!mInFlight.isEmpty()) {
+                // The stack has no room for another unacknowledged write.  Serialize from now on;
+                // the head is started again when the next callback arrives.
+                if (!mWritesSerialized) {
+                    Log.d(TAG, "Pipelined write rejected with " + mInFlight.size() + " in flight, serializing writes");
+                    mWritesSerialized = true;
+                }
+                return;
+            }
+            if (operation.retries < MAX_RETRIES) {
+                // Nothing of ours is in flight, so the stack is busy with something else.
+                mLastRetryDelay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << operation.retries);
+                operation.retries++;
+                mRetryCount++;
+                mRetryScheduled = true;
+                mHandler.postDelayed(mRetryRunnable, mLastRetryDelay);
+                return;
+            }
+            Log.d(TAG, "Failed to start GATT operation " + operation.type + ", dropping it");
+            mDropCount++;
+            mPending.poll();                                                                        //Drop it so that the rest of the queue is not stalled
+            finish(operation, STATUS_REJECTED);
+        }
+    }
+
+    private boolean canStart(Operation operation) {
+        return canStart(mInFlight, operation, mWritesSerialized ? 1 : mWriteWindow);
+    }
+
+    // Only unacknowledged writes may overlap, only with other unacknowledged writes and only up to
+    // the window.
+    static boolean canStart(LinkedList<Operation> inFlight, Operation operation, int window) {
+        if (inFlight.isEmpty()) {
+            return true;
+        }
+        return operation.isPipelined() && inFlight.size() < window && inFlight.peekLast().isPipelined();
+    }
+
+    private int start(Operation operation) {
+        switch (operation.type) {
+            case OP_WRITE_CHARACTERISTIC:
+                operation.characteristic.setValue(operation.value);
+                return mGatt.writeCharacteristic(operation.characteristic) ? START_PENDING : START_REJECTED;
+            case OP_READ_CHARACTERISTIC:
+                return mGatt.readCharacteristic(operation.characteristic) ? START_PENDING : START_REJECTED;
+            case OP_WRITE_DESCRIPTOR:
+                operation.descriptor.setValue(operation.value);
+                return mGatt.writeDescriptor(operation.descriptor) ? START_PENDING : START_REJECTED;
+            case OP_SET_NOTIFICATION:
+                return startSetNotification(operation);
+            case OP_REQUEST_MTU:
+                return startRequestMtu(operation);
+        }
+        return START_REJECTED;
+    }
+
+    private int startSetNotification(Operation operation) {
+        if (!mGatt.setCharacteristicNotification(operation.characteristic, operation.enable)) {     //Enable notification in the BluetoothGatt
+            return START_REJECTED;
+        }
+        BluetoothGattDescriptor descriptor = operation.characteristic.getDescriptor(UUID_CHAR_NOTIFICATION_DESCRIPTOR);
+        if (descriptor == null) {
+            return START_DONE;                                                                      //Nothing to configure on the server
+        }
+        descriptor.setValue(operation.enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        return mGatt.writeDescriptor(descriptor) ? START_PENDING : START_REJECTED;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private int startRequestMtu(Operation operation) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return START_DONE;
+        }
+        return mGatt.requestMtu(operation.mtu) ? START_PENDING : START_REJECTED;
+    }
+
+    private void armTimeout() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (!mInFlight.isEmpty()) {
+            mHandler.postDelayed(mTimeoutRunnable, OPERATION_TIMEOUT);
+        }
+    }
+
+    // Reports the outcome of an operation.  A failed fragment takes the rest of its write with it.
+    private void finish(Operation operation, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS && !operation.lastFragment) {
+            Iterator<Operation> iterator = mPending.iterator();
+            while (iterator.hasNext()) {
+                Operation fragment = iterator.next();
+                if (fragment.type == OP_WRITE_CHARACTERISTIC && fragment.job == operation.job) {
+                    iterator.remove();
+                    recycle(fragment);
+                }
+            }
+            for (Operation fragment : mInFlight) {
+                if (fragment.type == OP_WRITE_CHARACTERISTIC && fragment.job == operation.job) {
+                    fragment.lastFragment = false;                                                  //Already reported below
+                }
+            }
+        }
+        if (operation.lastFragment || status != BluetoothGatt.GATT_SUCCESS) {
+            notifyCallback(operation, status);
+        }
+        recycle(operation);
+    }
+
+    private void cancel(LinkedList<Operation> operations) {
+        Operation operation;
+        while ((operation = operations.poll()) != null) {
+            if (operation.lastFragment) {
+                notifyCallback(operation, STATUS_CANCELLED);
+            }
+            recycle(operation);
+        }
+    }
+
+    private static void notifyCallback(Operation operation, int status) {
+        if (operation.callback == null) {
+            return;
+        }
+        try {
+            operation.callback.onOperationComplete(status);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+}
@@ -16,14 +16,6 @@ public class JoystickRemoteFragment extends Fragment implements View.OnClickList
         return fragment;
     }
 
-    private static int EVT_8885_LEFT_FWD = 0x1C;
-    private static int EVT_8885_LEFT_REV = 0x20;
-    private static int EVT_8885_RIGHT_FWD = 0x24;
-    private static int EVT_8885_RIGHT_REV = 0x28;
-    private static int EVT_8885_LEFT_CTROFF = 0x2C;
-    private static int EVT_8885_RIGHT_CTROFF = 0x30;
-    private static int EVT_EV3_BEACON = 0x34;
-
     private static int REPEAT_DELAY = 200;
 
     private DeviceControlActivity myActivity;
@@ -90,7 +82,7 @@ public class JoystickRemoteFragment extends Fragment implements View.OnClickList
     public void onClick(View v) {
         DeviceControlActivity activity = (DeviceControlActivity) getActivity();
 
-        activity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(EVT_EV3_BEACON, currentChannel() ));
+        activity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_EV3_BEACON, currentChannel() ));
     }
 
     @Override
@@ -100,22 +92,22 @@ public class JoystickRemoteFragment extends Fragment implements View.OnClickList
                 switch (v.getId()) {
                     case R.id.joystick_left_up_button:
                         leftChannel = currentChannel();
-                        leftCommand = DeviceControlActivity.pfxRemoteCommand(EVT_8885_LEFT_FWD, leftChannel );
+                        leftCommand = DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8885_LEFT_FWD, leftChannel );
                         leftHandler.post(leftRunnable);
                         break;
                     case R.id.joystick_left_down_button:
                         leftChannel = currentChannel();
-                        leftCommand = DeviceControlActivity.pfxRemoteCommand(EVT_8885_LEFT_REV, leftChannel );
+                        leftCommand = DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8885_LEFT_REV, leftChannel );
                         leftHandler.post(leftRunnable);
                         break;
                     case R.id.joystick_right_up_button:
                         rightChannel = currentChannel();
-                        rightCommand = DeviceControlActivity.pfxRemoteCommand(EVT_8885_RIGHT_FWD, rightChannel );
+                        rightCommand = DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8885_RIGHT_FWD, rightChannel );
                         rightHandler.post(rightRunnable);
                         break;
                     case R.id.joystick_right_down_button:
                         rightChannel = currentChannel();
-                        rightCommand = DeviceControlActivity.pfxRemoteCommand(EVT_8885_RIGHT_REV, rightChannel );
+                        rightCommand = DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8885_RIGHT_REV, rightChannel );
                         rightHandler.post(rightRunnable);
                         break;
                 }
@@ -125,13 +117,13 @@ public class JoystickRemoteFragment extends Fragment implements View.OnClickList
                     case R.id.joystick_left_up_button:
                     case R.id.joystick_left_down_button: {
                         leftHandler.removeCallbacks(leftRunnable);
-                        myActivity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(EVT_8885_LEFT_CTROFF, leftChannel));
+                        myActivity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8885_LEFT_CTROFF, leftChannel));
                     }
                     break;
                     case R.id.joystick_right_up_button:
                     case R.id.joystick_right_down_button: {
                         rightHandler.removeCallbacks(rightRunnable);
-                        myActivity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(EVT_8885_RIGHT_CTROFF, rightChannel));
+                        myActivity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8885_RIGHT_CTROFF, rightChannel));
                     }
                     break;
                 }
@@ -0,0 +1,213 @@
+package com.fxbricks.android.pfxmobile;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory {@link PfxTransport} for running the protocol stack without Bluetooth, e.g. in load
+ * tests and benchmarks on a plain JVM.
+ *
+ * Frames sent go through a {@link PfxCommandQueue}, like on the BLE link, and are handed to the
+ * {@link Peer} one at a time on a dedicated link thread.  When the peer is slower than the sender
+ * drive commands are coalesced exactly as they are over the air.  The peer answers by calling
+ * {@link #receive(byte[], int, int)}, from any thread.
+ */
+public class LoopbackTransport implements PfxTransport {
+    /**
+     * The far end of the link, a simulated brick.
+     */
+    public interface Peer {
+        /**
+         * Called on the link thread with each frame sent, in the order the brick would get them.
+         */
+        void onFrame(LoopbackTransport transport, byte[] frame);
+    }
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Peer mPeer;
+    private final PfxCommandQueue mCommandQueue = new PfxCommandQueue();
+    private final BufferPool mBufferPool = new BufferPool();
+    private final HashMap<String, String> mDeviceInformation = new HashMap<>();
+    private final AtomicBoolean mPumpScheduled = new AtomicBoolean(false);
+    private final ExecutorService mLinkThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PfxLoopback");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile Receiver mReceiver;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    private volatile long mSentCount = 0;                                                           //Only written on the link thread
+
+    public LoopbackTransport(Peer peer) {
+        mPeer = peer;
+    }
+
+    /**
+     * Brings the link up, as a BLE connection completing service discovery would.
+     */
+    public void connect() {
+        mConnectionState = STATE_CONNECTING;                                                        //Frames sent from now on are held until connected
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mConnectionState = STATE_CONNECTED;
+                final Receiver receiver = mReceiver;
+                if (receiver != null) {
+                    receiver.onConnectionStateChanged(STATE_CONNECTED);
+                    receiver.onReady();
+                }
+                pump();                                                                             //Anything sent while connecting
+            }
+        });
+    }
+
+    /**
+     * Drops the link.  Frames still waiting are lost, as they would be over the air.
+     */
+    public void disconnect() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mConnectionState = STATE_DISCONNECTED;
+                mCommandQueue.clear();
+                final Receiver receiver = mReceiver;
+                if (receiver != null) {
+                    receiver.onConnectionStateChanged(STATE_DISCONNECTED);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets a value reported by requestDeviceInformation().
+     */
+    public synchronized void setDeviceInformation(String key, String value) {
+        mDeviceInformation.put(key, value);
+    }
+
+    /**
+     * Passes bytes from the peer to the receiver, as a notification on the data characteristic
+     * would.  The array may be reused once this returns.
+     */
+    public void receive(byte[] data, int offset, int length) {
+        final Receiver receiver = mReceiver;
+        if (receiver != null && mConnectionState == STATE_CONNECTED) {
+            receiver.onData(mBufferPool.obtain(data, offset, length));
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        mReceiver = receiver;
+    }
+
+    @Override
+    public void send(byte[] frame) {
+        if (mConnectionState == STATE_DISCONNECTED) {
+            return;
+        }
+        mCommandQueue.offer(frame);
+        schedulePump();
+    }
+
+    @Override
+    public void stopAll() {
+        if (mConnectionState == STATE_DISCONNECTED) {
+            return;
+        }
+        mCommandQueue.clearRemoteEvents();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mPeer.onFrame(LoopbackTransport.this, PfxCodec.allStopFrames());
+                mSentCount++;
+            }
+        });
+    }
+
+    @Override
+    public void requestDeviceInformation() {
+        final HashMap<String, String> values;
+        synchronized (this) {
+            values = new HashMap<>(mDeviceInformation);
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final Receiver receiver = mReceiver;
+                if (receiver == null) {
+                    return;
+                }
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    final byte[] value = entry.getValue().getBytes(UTF_8);
+                    receiver.onDeviceInformation(entry.getKey(), mBufferPool.obtain(value));
+                }
+            }
+        });
+    }
+
+    @Override
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    @Override
+    public void close() {
+        mReceiver = null;
+        mLinkThread.shutdown();
+    }
+
+    // Number of frames handed to the peer.
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    // Number of drive commands replaced by a newer one before the peer got them.
+    public int getCoalescedCount() {
+        return mCommandQueue.getCoalescedCount();
+    }
+
+    private void schedulePump() {
+        if (mPumpScheduled.compareAndSet(false, true)) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    mPumpScheduled.set(false);
+                    pump();
+                }
+            });
+        }
+    }
+
+    // Hands the waiting frames to the peer, on the link thread.
+    private void pump() {
+        if (mConnectionState != STATE_CONNECTED) {
+            return;
+        }
+        byte[] frame;
+        while ((frame = mCommandQueue.poll()) != null) {
+            mPeer.onFrame(this, frame);
+            mSentCount++;
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mLinkThread.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // Closed, nothing to deliver to
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.fxbricks.android.pfxmobile;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless stand-in for a PFx Brick, the far end of a {@link LoopbackTransport}.
+ *
+ * It reads the [[[ command payload ]]] frames written to it, answers PFX_CMD_GET_STATUS and
+ * PFX_CMD_GET_NAME with responses laid out like the brick's, and keeps track of the remote events
+ * it is sent.  Responses are notified in chunks of the configured size, each one after the
+ * configured latency plus a random jitter, and each one may be lost.  Chunks are never reordered,
+ * like notifications on a BLE link.
+ *
+ * Several emulators can share one scheduler for delivering their responses, so a load test with
+ * many bricks does not need a thread per brick.
+ */
+public class PfxBrickEmulator implements LoopbackTransport.Peer {
+    public static final int DEFAULT_CHUNK_SIZE = 20;                                                //ATT payload with the default MTU of 23
+    public static final int DEFAULT_HARDWARE_VERSION = 0xA204;
+    public static final int DEFAULT_FIRMWARE_VERSION = 0x0140;                                      //1.40
+    public static final String DEFAULT_PRODUCT_DESCRIPTION = "PFx Brick 16 MB";
+    public static final int NO_EVENT = -1;
+
+    private static final int MAX_PAYLOAD_LENGTH = 64;
+    private static final int NAME_OFFSET = 1;
+    private static final int HARDWARE_VERSION_OFFSET = 7;
+    private static final int SERIAL_NUMBER_OFFSET = 9;
+    private static final int PRODUCT_DESCRIPTION_OFFSET = 13;
+    private static final int PRODUCT_DESCRIPTION_LENGTH = 24;
+    private static final int FIRMWARE_VERSION_OFFSET = 37;
+    private static final int FIRMWARE_BUILD_OFFSET = 39;
+
+    // Frame reader states
+    private static final int STATE_START = 0;                                                       //Counting [[[
+    private static final int STATE_COMMAND = 1;
+    private static final int STATE_PAYLOAD = 2;                                                     //Up to and including ]]]
+
+    // One notification of a response, waiting to be delivered
+    private static class Chunk {
+        final byte[] response;
+        final int offset;
+        final int length;
+
+        Chunk(byte[] response, int offset, int length) {
+            this.response = response;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final boolean mOwnScheduler;
+    private final Random mRandom;
+
+    private volatile String mName;
+    private volatile int mHardwareVersion = DEFAULT_HARDWARE_VERSION;
+    private volatile int mFirmwareVersion = DEFAULT_FIRMWARE_VERSION;
+    private volatile int mFirmwareBuild = 0;
+    private volatile int mSerialNumber;
+    private volatile int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile long mLatency = 0;                                                             //Microseconds per notification
+    private volatile long mJitter = 0;                                                              //Microseconds, uniformly distributed
+    private volatile double mLossRate = 0;
+
+    // Frame reader, only touched on the link thread
+    private int mState = STATE_START;
+    private int mDelimiters = 0;
+    private byte mCommand;
+    private final byte[] mPayload = new byte[MAX_PAYLOAD_LENGTH + PfxProtocol.FRAME_DELIMITER_LENGTH];
+    private int mPayloadLength = 0;
+    private long mLastDelivery = 0;                                                                 //System.nanoTime() the last chunk is due
+    private final ConcurrentLinkedQueue<Chunk> mPendingChunks = new ConcurrentLinkedQueue<>();
+
+    private final int[] mRemoteEvents = new int[PfxProtocol.COALESCE_KEY_COUNT];                    //Last event for each motor output, guarded by itself
+
+    private final AtomicLong mCommandCount = new AtomicLong();
+    private final AtomicLong mRemoteEventCount = new AtomicLong();
+    private final AtomicLong mInvalidCount = new AtomicLong();
+    private final AtomicLong mResponseCount = new AtomicLong();
+    private final AtomicLong mChunkCount = new AtomicLong();
+    private final AtomicLong mLostCount = new AtomicLong();
+
+    public PfxBrickEmulator(String name) {
+        this(name, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PfxBrickEmulator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true, new Random());
+    }
+
+    /**
+     * @param scheduler Delivers the responses when they are delayed, may be shared with other
+     *                  emulators.  It is not shut down by close().
+     * @param random Source of jitter and loss, seed it for repeatable runs.
+     */
+    public PfxBrickEmulator(String name, ScheduledExecutorService scheduler, Random random) {
+        this(name, scheduler, false, random);
+    }
+
+    private PfxBrickEmulator(String name, ScheduledExecutorService scheduler, boolean ownScheduler, Random random) {
+        mName = name;
+        mScheduler = scheduler;
+        mOwnScheduler = ownScheduler;
+        mRandom = random;
+        mSerialNumber = random.nextInt();
+        for (int i = 0; i < mRemoteEvents.length; i++) {
+            mRemoteEvents[i] = NO_EVENT;
+        }
+    }
+
+    public void setName(String name) {
+        mName = name;
+    }
+
+    /**
+     * @param version Reported as is in the status, e.g. 0xA204.
+     */
+    public void setHardwareVersion(int version) {
+        mHardwareVersion = version;
+    }
+
+    /**
+     * @param version Major version in the high byte, minor in the low byte, e.g. 0x0140 for 1.40.
+     */
+    public void setFirmwareVersion(int version) {
+        mFirmwareVersion = version;
+    }
+
+    public void setFirmwareBuild(int build) {
+        mFirmwareBuild = build;
+    }
+
+    public void setSerialNumber(int serialNumber) {
+        mSerialNumber = serialNumber;
+    }
+
+    /**
+     * @param chunkSize Largest notification, in bytes.
+     */
+    public void setChunkSize(int chunkSize) {
+        mChunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * @param latency Delay before each notification is delivered.
+     * @param jitter Up to this much is added to the latency at random.
+     */
+    public void setLatency(long latency, long jitter, TimeUnit unit) {
+        mLatency = unit.toMicros(latency);
+        mJitter = unit.toMicros(jitter);
+    }
+
+    /**
+     * @param lossRate Probability, from 0 to 1, of a notification being lost.
+     */
+    public void setLossRate(double lossRate) {
+        mLossRate = lossRate;
+    }
+
+    /**
+     * Stops delivering responses, if the emulator has its own scheduler.
+     */
+    public void close() {
+        if (mOwnScheduler) {
+            mScheduler.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onFrame(LoopbackTransport transport, byte[] frame) {
+        for (byte b : frame) {
+            read(transport, b);
+        }
+    }
+
+    // Feeds one byte to the frame reader.  Bytes outside a frame are ignored, like the brick does.
+    private void read(LoopbackTransport transport, byte b) {
+        switch (mState) {
+            case STATE_START:
+                mDelimiters = b == PfxProtocol.FRAME_START ? mDelimiters + 1 : 0;
+                if (mDelimiters == PfxProtocol.FRAME_DELIMITER_LENGTH) {
+                    mState = STATE_COMMAND;
+                }
+                break;
+            case STATE_COMMAND:
+                if (b == PfxProtocol.FRAME_START) {
+                    break;                                                                          //More than three, still the start
+                }
+                mCommand = b;
+                mPayloadLength = 0;
+                mDelimiters = 0;
+                mState = STATE_PAYLOAD;
+                break;
+            case STATE_PAYLOAD:
+                if (mPayloadLength == mPayload.length) {
+                    mInvalidCount.incrementAndGet();                                                //No end in sight, start over
+                    mState = STATE_START;
+                    mDelimiters = 0;
+                    break;
+                }
+                mPayload[mPayloadLength++] = b;
+                mDelimiters = b == PfxProtocol.FRAME_END ? mDelimiters + 1 : 0;
+                if (mDelimiters == PfxProtocol.FRAME_DELIMITER_LENGTH) {
+                    mState = STATE_START;
+                    mDelimiters = 0;
+                    onCommand(transport, mCommand, mPayloadLength - PfxProtocol.FRAME_DELIMITER_LENGTH);
+                }
+                break;
+        }
+    }
+
+    private void onCommand(LoopbackTransport transport, byte command, int payloadLength) {
+        mCommandCount.incrementAndGet();
+        switch (command) {
+            case PfxProtocol.PFX_CMD_GET_STATUS:
+                respond(transport, statusResponse());
+                break;
+            case PfxProtocol.PFX_CMD_GET_NAME:
+                respond(transport, nameResponse());
+                break;
+            case PfxProtocol.PFX_CMD_REMOTE_EVENT:
+                if (payloadLength != 1) {
+                    mInvalidCount.incrementAndGet();
+                    break;
+                }
+                final int event = mPayload[0] & 0xFF & ~PfxProtocol.CHANNEL_MASK;
+                final int channel = mPayload[0] & PfxProtocol.CHANNEL_MASK;
+                final int side = PfxProtocol.motorSide(event);
+                if (side != PfxProtocol.MOTOR_SIDE_NONE) {
+                    synchronized (mRemoteEvents) {
+                        mRemoteEvents[channel * 2 + side] = event;
+                    }
+                }
+                mRemoteEventCount.incrementAndGet();
+                break;
+            default:
+                mInvalidCount.incrementAndGet();                                                    //Not emulated
+                break;
+        }
+    }
+
+    private byte[] statusResponse() {
+        final byte[] response = new byte[PfxProtocol.STATUS_RESPONSE_LENGTH];
+        response[0] = (byte) (PfxProtocol.PFX_CMD_GET_STATUS | PfxProtocol.PFX_RESPONSE_FLAG);
+        final int hardware = mHardwareVersion;
+        response[HARDWARE_VERSION_OFFSET] = (byte) (hardware >> 8);
+        response[HARDWARE_VERSION_OFFSET + 1] = (byte) hardware;
+        final int firmware = mFirmwareVersion;
+        response[FIRMWARE_VERSION_OFFSET] = (byte) (firmware >> 8);
+        response[FIRMWARE_VERSION_OFFSET + 1] = (byte) firmware;
+        final int build = mFirmwareBuild;
+        response[FIRMWARE_BUILD_OFFSET] = (byte) (build >> 8);
+        response[FIRMWARE_BUILD_OFFSET + 1] = (byte) build;
+        final int serialNumber = mSerialNumber;
+        for (int i = 0; i < 4; i++) {
+            response[SERIAL_NUMBER_OFFSET + i] = (byte) (serialNumber >> (24 - 8 * i));
+        }
+        final byte[] description = DEFAULT_PRODUCT_DESCRIPTION.getBytes();
+        System.arraycopy(description, 0, response, PRODUCT_DESCRIPTION_OFFSET, Math.min(description.length, PRODUCT_DESCRIPTION_LENGTH));
+        return response;
+    }
+
+    private byte[] nameResponse() {
+        final byte[] response = new byte[PfxProtocol.NAME_RESPONSE_LENGTH];                         //Zero padded
+        response[0] = (byte) (PfxProtocol.PFX_CMD_GET_NAME | PfxProtocol.PFX_RESPONSE_FLAG);
+        final byte[] name = mName.getBytes();
+        System.arraycopy(name, 0, response, NAME_OFFSET, Math.min(name.length, response.length - NAME_OFFSET));
+        return response;
+    }
+
+    // Notifies the response in chunks, each after the latency and jitter, keeping them in order.
+    private void respond(final LoopbackTransport transport, final byte[] response) {
+        mResponseCount.incrementAndGet();
+        final int chunkSize = mChunkSize;
+        for (int offset = 0; offset < response.length; offset += chunkSize) {
+            final int length = Math.min(chunkSize, response.length - offset);
+            mChunkCount.incrementAndGet();
+            if (mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+                mLostCount.incrementAndGet();
+                continue;
+            }
+            final long delay = delay();
+            if (delay == 0 && mPendingChunks.isEmpty()) {
+                transport.receive(response, offset, length);
+                continue;
+            }
+            final long now = System.nanoTime();
+            final long due = Math.max(now + delay, mLastDelivery);                                  //No overtaking the previous chunk
+            mLastDelivery = due;
+            mPendingChunks.add(new Chunk(response, offset, length));
+            try {
+                // Scheduled tasks due at nearly the same time can run in either order, so each one
+                // delivers the oldest chunk rather than its own.
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        final Chunk chunk = mPendingChunks.poll();
+                        if (chunk != null) {
+                            transport.receive(chunk.response, chunk.offset, chunk.length);
+                        }
+                    }
+                }, due - now, TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                mPendingChunks.clear();                                                             //Closed
+                return;
+            }
+        }
+    }
+
+    // Nanoseconds until the next notification.
+    private long delay() {
+        long delay = mLatency;
+        final long jitter = mJitter;
+        if (jitter > 0) {
+            delay += (long) (mRandom.nextDouble() * jitter);
+        }
+        return TimeUnit.MICROSECONDS.toNanos(delay);
+    }
+
+    /**
+     * @return The last remote event received for a motor output, without the channel, or
+     *         NO_EVENT if there was none.
+     */
+    public int getRemoteEvent(int channel, int side) {
+        synchronized (mRemoteEvents) {
+            return mRemoteEvents[channel * 2 + side];
+        }
+    }
+
+    // Number of complete frames received.
+    public long getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    public long getRemoteEventCount() {
+        return mRemoteEventCount.get();
+    }
+
+    // Number of frames that were malformed or carried a command the emulator does not answer.
+    public long getInvalidCount() {
+        return mInvalidCount.get();
+    }
+
+    public long getResponseCount() {
+        return mResponseCount.get();
+    }
+
+    // Number of notifications sent, lost ones included.
+    public long getChunkCount() {
+        return mChunkCount.get();
+    }
+
+    public long getLostCount() {
+        return mLostCount.get();
+    }
+}
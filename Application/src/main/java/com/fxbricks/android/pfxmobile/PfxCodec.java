@@ -0,0 +1,63 @@
+package com.fxbricks.android.pfxmobile;
+
+/**
+ * Serves the PFx command frames the app sends repeatedly without allocating.
+ *
+ * Every remote event the brick knows, for every channel, is built once up front, as are the
+ * status, name and all-stop frames.  The frames returned are shared: they must never be modified,
+ * which {@link PfxCommandQueue} already requires of anything queued, so the GATT queue writes
+ * them without taking a copy.
+ */
+public class PfxCodec {
+    // Remote events are multiples of 4 up to the EV3 beacon, the channel fills the low two bits
+    private static final int REMOTE_EVENT_TABLE_SIZE = PfxProtocol.EVT_EV3_BEACON + PfxProtocol.CHANNEL_COUNT;
+
+    private static final byte[][] REMOTE_EVENT_FRAMES = new byte[REMOTE_EVENT_TABLE_SIZE][];
+    private static final byte[] STATUS_FRAME = PfxProtocol.getStatusFrame();
+    private static final byte[] NAME_FRAME = PfxProtocol.getNameFrame();
+    private static final byte[] ALL_STOP_FRAMES = PfxProtocol.allStopFrames();
+
+    static {
+        for (int event = 0; event <= PfxProtocol.EVT_EV3_BEACON; event += PfxProtocol.CHANNEL_COUNT) {
+            for (int channel = 0; channel < PfxProtocol.CHANNEL_COUNT; channel++) {
+                REMOTE_EVENT_FRAMES[event | channel] = PfxProtocol.remoteEventFrame(event, channel);
+            }
+        }
+    }
+
+    private PfxCodec() {
+    }
+
+    /**
+     * @return The shared frame for a remote control event, [[[ 0x15 event|channel ]]].
+     * @throws IllegalArgumentException If the event or the channel is out of range.
+     */
+    public static byte[] remoteEventFrame(int event, int channel) {
+        if (event < 0 || event > PfxProtocol.EVT_EV3_BEACON || (event & PfxProtocol.CHANNEL_MASK) != 0
+                || channel < 0 || channel >= PfxProtocol.CHANNEL_COUNT) {
+            throw new IllegalArgumentException("No remote event 0x" + Integer.toHexString(event) + " on channel " + channel);
+        }
+        return REMOTE_EVENT_FRAMES[event | channel];
+    }
+
+    /**
+     * @return The shared PFX_CMD_GET_STATUS frame.
+     */
+    public static byte[] statusFrame() {
+        return STATUS_FRAME;
+    }
+
+    /**
+     * @return The shared PFX_CMD_GET_NAME frame.
+     */
+    public static byte[] nameFrame() {
+        return NAME_FRAME;
+    }
+
+    /**
+     * @return The shared centre-off events for both outputs of every channel.
+     */
+    public static byte[] allStopFrames() {
+        return ALL_STOP_FRAMES;
+    }
+}
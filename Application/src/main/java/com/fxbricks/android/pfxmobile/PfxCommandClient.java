@@ -0,0 +1,186 @@
+package com.fxbricks.android.pfxmobile;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends PFx commands that expect a response and matches the responses to them.
+ *
+ * A response is matched to the oldest outstanding request for the same command, by its response
+ * code (command | 0x80).  Up to getMaxOutstanding() requests are on the link at once, the rest
+ * wait their turn here.  A request that is not answered before its deadline fails with
+ * FAILURE_TIMEOUT, so a lost response no longer stalls the requests behind it.
+ *
+ * Callbacks are called without any lock held, on the thread that passed the response to
+ * {@link #onFrame(byte[], int)}, or on the scheduler thread for timeouts.
+ */
+public class PfxCommandClient {
+    public static final int DEFAULT_MAX_OUTSTANDING = 2;
+    public static final long DEFAULT_TIMEOUT = 1000;                                                //Milliseconds
+
+    public static final int FAILURE_TIMEOUT = 1;
+    public static final int FAILURE_CANCELLED = 2;
+
+    public interface ResponseCallback {
+        /**
+         * @param response Scratch array holding the response at offset 0.  It is only valid
+         *                 until the callback returns.
+         * @param length Length of the response.
+         */
+        void onResponse(byte[] response, int length);
+
+        /**
+         * @param reason FAILURE_TIMEOUT or FAILURE_CANCELLED.
+         */
+        void onFailure(int reason);
+    }
+
+    public interface CommandSender {
+        void send(byte[] frame);
+    }
+
+    private class Request implements Runnable {
+        final byte[] frame;
+        final int response;
+        final long timeout;
+        final ResponseCallback callback;
+        ScheduledFuture<?> deadline;
+
+        Request(byte[] frame, long timeout, ResponseCallback callback) {
+            this.frame = frame;
+            this.response = PfxProtocol.responseCode(frame);
+            this.timeout = timeout;
+            this.callback = callback;
+        }
+
+        // Deadline passed
+        @Override
+        public void run() {
+            synchronized (PfxCommandClient.this) {
+                if (!mOutstanding.remove(this)) {
+                    return;                                                                         //Answered in the meantime
+                }
+                mTimeoutCount++;
+            }
+            callback.onFailure(FAILURE_TIMEOUT);
+            pump();
+        }
+    }
+
+    private final CommandSender mSender;
+    private final ScheduledExecutorService mScheduler;
+    private final LinkedList<Request> mWaiting = new LinkedList<>();
+    private final LinkedList<Request> mOutstanding = new LinkedList<>();
+    private int mMaxOutstanding = DEFAULT_MAX_OUTSTANDING;
+
+    private int mTimeoutCount = 0;
+    private int mUnsolicitedCount = 0;
+
+    public PfxCommandClient(CommandSender sender, ScheduledExecutorService scheduler) {
+        mSender = sender;
+        mScheduler = scheduler;
+    }
+
+    public void request(byte[] frame, ResponseCallback callback) {
+        request(frame, DEFAULT_TIMEOUT, callback);
+    }
+
+    /**
+     * Queues a command frame and reports its response, or its failure, to the callback.
+     *
+     * @param timeout Milliseconds to wait for the response once the command is sent.
+     */
+    public void request(byte[] frame, long timeout, ResponseCallback callback) {
+        synchronized (this) {
+            mWaiting.add(new Request(frame, timeout, callback));
+        }
+        pump();
+    }
+
+    /**
+     * Passes a response frame received from the brick.
+     *
+     * @return False if no outstanding request was waiting for it.
+     */
+    public boolean onFrame(byte[] frame, int length) {
+        final int response = frame[0] & 0xFF;
+        Request match = null;
+        synchronized (this) {
+            for (Iterator<Request> it = mOutstanding.iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (request.response == response) {
+                    it.remove();
+                    match = request;
+                    break;
+                }
+            }
+            if (match == null) {
+                mUnsolicitedCount++;
+                return false;
+            }
+        }
+        match.deadline.cancel(false);
+        match.callback.onResponse(frame, length);
+        pump();
+        return true;
+    }
+
+    /**
+     * Fails every waiting and outstanding request with FAILURE_CANCELLED, e.g. on disconnect.
+     */
+    public void cancelAll() {
+        LinkedList<Request> cancelled = new LinkedList<>();
+        synchronized (this) {
+            cancelled.addAll(mOutstanding);
+            cancelled.addAll(mWaiting);
+            mOutstanding.clear();
+            mWaiting.clear();
+        }
+        for (Request request : cancelled) {
+            if (request.deadline != null) {
+                request.deadline.cancel(false);
+            }
+            request.callback.onFailure(FAILURE_CANCELLED);
+        }
+    }
+
+    public synchronized void setMaxOutstanding(int maxOutstanding) {
+        mMaxOutstanding = Math.max(1, maxOutstanding);
+    }
+
+    public synchronized int getMaxOutstanding() {
+        return mMaxOutstanding;
+    }
+
+    public synchronized int getOutstandingCount() {
+        return mOutstanding.size();
+    }
+
+    public synchronized int getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    // Number of responses that did not match any outstanding request.
+    public synchronized int getUnsolicitedCount() {
+        return mUnsolicitedCount;
+    }
+
+    // Sends waiting requests while there is room on the link.
+    private void pump() {
+        while (true) {
+            Request request;
+            synchronized (this) {
+                if (mOutstanding.size() >= mMaxOutstanding || mWaiting.isEmpty()) {
+                    return;
+                }
+                request = mWaiting.poll();
+                mOutstanding.add(request);
+                request.deadline = mScheduler.schedule(request, request.timeout, TimeUnit.MILLISECONDS);
+            }
+            mSender.send(request.frame);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.fxbricks.android.pfxmobile;
+
+/**
+ * Bounded queue of PFx command frames waiting to be written to the brick.
+ *
+ * Frames are sent in priority order: motor stops first, then drive commands, then queries and
+ * everything else.  Within a priority they go out in the order they were queued.
+ *
+ * The remote fragments repeat drive commands for as long as a button is held.  When the link
+ * cannot keep up, a newer remote event for the same channel and motor output replaces the one
+ * still waiting here, so only the latest intent is sent.  A frame of the same priority takes the
+ * old frame's place in the queue; a stop preempts a waiting drive command and vice versa.
+ * Speed steps of the 8879 remote are relative, so they are never replaced; a stop drops the steps
+ * still waiting for the outputs it stops instead.
+ * Frames are queued by reference and must not be modified after being offered.
+ *
+ * Queue entries are recycled, so once the queue has seen its largest backlog offering and
+ * polling frames does not allocate.
+ */
+public class PfxCommandQueue {
+    public static final int DEFAULT_CAPACITY = 32;
+
+    public static final int PRIORITY_STOP = 0;                                                      //Motor stops, never refused
+    public static final int PRIORITY_CONTROL = 1;                                                   //Drive commands
+    public static final int PRIORITY_INFO = 2;                                                      //Queries and everything else
+    public static final int NO_PRIORITY = -1;
+    private static final int PRIORITY_COUNT = 3;
+
+    // Node of the list of its lane, or of the free list
+    private static class Entry {
+        byte[] frame;
+        int key;
+        int priority;
+        Entry previous;
+        Entry next;
+    }
+
+    private final Entry[] mHeads = new Entry[PRIORITY_COUNT];
+    private final Entry[] mTails = new Entry[PRIORITY_COUNT];
+    private Entry mFree;                                                                            //Recycled entries, linked through next
+    private final Entry[] mPendingByKey = new Entry[PfxProtocol.COALESCE_KEY_COUNT];
+    private final int mCapacity;
+    private int mSize = 0;
+
+    private int mCoalescedCount = 0;
+    private int mRejectedCount = 0;
+
+    public PfxCommandQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PfxCommandQueue(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return The lane a frame is sent in.
+     */
+    public static int priority(byte[] frame) {
+        if (!PfxProtocol.isRemoteEventFrame(frame)) {
+            return PRIORITY_INFO;
+        }
+        return PfxProtocol.isStopEvent(PfxProtocol.remoteEvent(frame)) ? PRIORITY_STOP : PRIORITY_CONTROL;
+    }
+
+    /**
+     * Queues a frame, replacing a pending remote event for the same channel and motor output.
+     *
+     * @return False if the queue is full and the frame was not queued.
+     */
+    public synchronized boolean offer(byte[] frame) {
+        final int key = PfxProtocol.coalesceKey(frame);
+        final int priority = priority(frame);
+        final Entry pending = key != PfxProtocol.NO_COALESCE_KEY ? mPendingByKey[key] : null;
+        if (pending != null) {
+            mCoalescedCount++;
+            if (pending.priority == priority) {
+                pending.frame = frame;                                                              //Latest wins, in place of the stale frame
+                return true;
+            }
+            remove(pending);                                                                        //Superseded, the new frame goes in its own lane
+        }
+        if (priority == PRIORITY_STOP) {
+            removeSpeedSteps(frame);
+        }
+        else if (mSize >= mCapacity && priority != PRIORITY_STOP) {
+            mRejectedCount++;
+            return false;
+        }
+        Entry entry = obtain();
+        entry.frame = frame;
+        entry.key = key;
+        entry.priority = priority;
+        append(entry);
+        if (key != PfxProtocol.NO_COALESCE_KEY) {
+            mPendingByKey[key] = entry;
+        }
+        return true;
+    }
+
+    /**
+     * @return The priority of the frame poll() returns next, or NO_PRIORITY if the queue is empty.
+     */
+    public synchronized int nextPriority() {
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            if (mHeads[priority] != null) {
+                return priority;
+            }
+        }
+        return NO_PRIORITY;
+    }
+
+    /**
+     * @return The next frame to send, or null if the queue is empty.
+     */
+    public synchronized byte[] poll() {
+        final int priority = nextPriority();
+        if (priority == NO_PRIORITY) {
+            return null;
+        }
+        final Entry entry = mHeads[priority];
+        final byte[] frame = entry.frame;
+        remove(entry);
+        return frame;
+    }
+
+    /**
+     * Drops the frame waiting for a channel and motor output, e.g. because a newer one was sent
+     * another way.
+     *
+     * @return False if nothing was waiting for that key.
+     */
+    public synchronized boolean removeKey(int key) {
+        final Entry pending = key != PfxProtocol.NO_COALESCE_KEY ? mPendingByKey[key] : null;
+        if (pending == null) {
+            return false;
+        }
+        mCoalescedCount++;
+        remove(pending);
+        return true;
+    }
+
+    /**
+     * Drops the drive commands and speed steps waiting for the outputs a stop event stops, e.g.
+     * because the stop was sent another way.
+     */
+    public synchronized void removeStopped(byte[] stop) {
+        final int channel = PfxProtocol.remoteChannel(stop);
+        final int stopped = PfxProtocol.motorSide(PfxProtocol.remoteEvent(stop));                  //MOTOR_SIDE_NONE stops both
+        for (int side = PfxProtocol.MOTOR_SIDE_LEFT; side <= PfxProtocol.MOTOR_SIDE_RIGHT; side++) {
+            if (stopped == PfxProtocol.MOTOR_SIDE_NONE || stopped == side) {
+                removeKey(channel * 2 + side);
+            }
+        }
+        removeSpeedSteps(stop);
+    }
+
+    /**
+     * Drops every queued stop and drive command, leaving queries in place.
+     */
+    public synchronized void clearRemoteEvents() {
+        clearLane(PRIORITY_STOP);
+        clearLane(PRIORITY_CONTROL);
+    }
+
+    public synchronized void clear() {
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            clearLane(priority);
+        }
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    // Number of frames that were replaced by a newer one before being sent.
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    // Number of frames refused because the queue was full.
+    public synchronized int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    private Entry obtain() {
+        final Entry entry = mFree;
+        if (entry == null) {
+            return new Entry();                                                                     //Only until the free list covers the largest backlog
+        }
+        mFree = entry.next;
+        entry.next = null;
+        return entry;
+    }
+
+    // Adds the entry at the tail of its lane.
+    private void append(Entry entry) {
+        final Entry tail = mTails[entry.priority];
+        entry.previous = tail;
+        if (tail != null) {
+            tail.next = entry;
+        }
+        else {
+            mHeads[entry.priority] = entry;
+        }
+        mTails[entry.priority] = entry;
+        mSize++;
+    }
+
+    // Unlinks the entry from its lane and recycles it.
+    private void remove(Entry entry) {
+        if (entry.previous != null) {
+            entry.previous.next = entry.next;
+        }
+        else {
+            mHeads[entry.priority] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.previous = entry.previous;
+        }
+        else {
+            mTails[entry.priority] = entry.previous;
+        }
+        mSize--;
+        if (entry.key != PfxProtocol.NO_COALESCE_KEY) {
+            mPendingByKey[entry.key] = null;
+        }
+        entry.frame = null;
+        entry.previous = null;
+        entry.next = mFree;
+        mFree = entry;
+    }
+
+    // Drops the speed steps waiting for the outputs a stop event stops, they would restart them.
+    private void removeSpeedSteps(byte[] stop) {
+        final int channel = PfxProtocol.remoteChannel(stop);
+        final int side = PfxProtocol.motorSide(PfxProtocol.remoteEvent(stop));                     //MOTOR_SIDE_NONE stops both
+        Entry entry = mHeads[PRIORITY_CONTROL];
+        while (entry != null) {
+            final Entry next = entry.next;
+            final int event = PfxProtocol.remoteEvent(entry.frame);
+            if (PfxProtocol.isSpeedStep(event) && PfxProtocol.remoteChannel(entry.frame) == channel
+                    && (side == PfxProtocol.MOTOR_SIDE_NONE || PfxProtocol.motorSide(event) == side)) {
+                mCoalescedCount++;
+                remove(entry);
+            }
+            entry = next;
+        }
+    }
+
+    private void clearLane(int priority) {
+        while (mHeads[priority] != null) {
+            remove(mHeads[priority]);
+        }
+    }
+}
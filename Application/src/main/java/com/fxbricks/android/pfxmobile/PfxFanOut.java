@@ -0,0 +1,120 @@
+package com.fxbricks.android.pfxmobile;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * One PFx command sent to a group of bricks in a single burst, see
+ * {@link BluetoothLeService#writeGroup(String, byte[], Listener)}.
+ *
+ * The frame is encoded once and written to every brick's GATT queue back to back, ahead of the
+ * commands already waiting there.  Each write is timed when its completion callback reaches the
+ * GATT operation thread.  For a write without response that is when the stack has buffered the
+ * write, for an acknowledged one when the brick has confirmed it, so the time includes the
+ * callback's trip through the binder and the queue.  The skew is the spread between the first
+ * and the last of those times; it grows with the number of bricks and with how busy their links
+ * are.
+ *
+ * Times are System.nanoTime() values.  The listener is called on the GATT operation thread.
+ */
+public class PfxFanOut {
+    public interface Listener {
+        void onFanOutComplete(PfxFanOut fanOut);
+    }
+
+    private final byte[] mFrame;
+    private final int mBrickCount;
+    private final Listener mListener;
+    private final long mStartTime = System.nanoTime();
+
+    // Guarded by this
+    private int mPending;
+    private int mFailedCount = 0;
+    private long mFirstWriteTime = 0;
+    private long mLastWriteTime = 0;
+
+    PfxFanOut(byte[] frame, int brickCount, Listener listener) {
+        mFrame = frame;
+        mBrickCount = brickCount;
+        mPending = brickCount;
+        mListener = listener;
+        if (brickCount == 0) {
+            complete();
+        }
+    }
+
+    /**
+     * @return A callback for the write to one brick of the group.
+     */
+    GattOperationQueue.Callback newWriteCallback() {
+        return new GattOperationQueue.Callback() {
+            @Override
+            public void onOperationComplete(int status) {
+                onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        };
+    }
+
+    /**
+     * Counts a brick of the group that could not be written to, e.g. because it is not connected.
+     */
+    void onWriteSkipped() {
+        onWriteComplete(false);
+    }
+
+    private void onWriteComplete(boolean success) {
+        final long now = System.nanoTime();
+        synchronized (this) {
+            if (success) {
+                if (mFirstWriteTime == 0) {
+                    mFirstWriteTime = now;
+                }
+                mLastWriteTime = now;
+            }
+            else {
+                mFailedCount++;
+            }
+            if (--mPending > 0) {
+                return;
+            }
+        }
+        complete();
+    }
+
+    private void complete() {
+        if (mListener != null) {
+            mListener.onFanOutComplete(this);
+        }
+    }
+
+    public byte[] getFrame() {
+        return mFrame;
+    }
+
+    public int getBrickCount() {
+        return mBrickCount;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized boolean isComplete() {
+        return mPending == 0;
+    }
+
+    /**
+     * @return Nanoseconds between the first and the last brick's write completing, 0 if fewer than
+     *         two writes succeeded.
+     */
+    public synchronized long getSkew() {
+        return mLastWriteTime - mFirstWriteTime;
+    }
+
+    /**
+     * @return Nanoseconds from the fan-out starting until the last brick's write completed, or 0 if
+     *         none succeeded.
+     */
+    public synchronized long getLatency() {
+        return mLastWriteTime != 0 ? mLastWriteTime - mStartTime : 0;
+    }
+}
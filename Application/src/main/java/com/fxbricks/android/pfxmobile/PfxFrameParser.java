@@ -0,0 +1,131 @@
+package com.fxbricks.android.pfxmobile;
+
+/**
+ * Splits the byte stream notified by the PFx Brick into response frames.
+ *
+ * Incoming bytes are kept in a ring buffer until a whole frame has arrived.  A frame starts with a
+ * response code (command code | 0x80) and its length is looked up from that code, so one
+ * notification can carry several frames and one frame can be split over several notifications.
+ * Responses without a known length end with the notification they arrived in.  Bytes that cannot
+ * start a frame are discarded.
+ *
+ * Not thread safe, feed it from one thread.
+ */
+public class PfxFrameParser {
+    public static final int DEFAULT_CAPACITY = 512;
+
+    public interface FrameListener {
+        /**
+         * @param frame Scratch array holding the frame at offset 0.  It is reused for the next
+         *              frame, so copy anything that is needed after returning.
+         * @param length Length of the frame.
+         */
+        void onFrame(byte[] frame, int length);
+    }
+
+    private static final int NO_FRAME = 0;
+
+    private final FrameListener mListener;
+    private final byte[] mBuffer;
+    private final byte[] mFrame;
+    private int mHead = 0;                                                                          //Index of the oldest byte
+    private int mCount = 0;                                                                         //Bytes in the ring
+    private int mExpected = NO_FRAME;                                                               //Length of the frame being received
+
+    private int mFrameCount = 0;
+    private int mDiscardedCount = 0;
+
+    public PfxFrameParser(FrameListener listener) {
+        this(listener, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Size of the ring buffer.  A frame has to fit in it whole.
+     * @throws IllegalArgumentException If the capacity is below PfxProtocol.MAX_RESPONSE_LENGTH,
+     *         as the longest responses could then never complete.
+     */
+    public PfxFrameParser(FrameListener listener, int capacity) {
+        if (capacity < PfxProtocol.MAX_RESPONSE_LENGTH) {
+            throw new IllegalArgumentException("Capacity " + capacity + " is below the longest response, " + PfxProtocol.MAX_RESPONSE_LENGTH);
+        }
+        mListener = listener;
+        mBuffer = new byte[capacity];
+        mFrame = new byte[capacity];
+    }
+
+    public void feed(byte[] data) {
+        feed(data, 0, data.length);
+    }
+
+    /**
+     * Adds the bytes of one notification and reports every frame they complete.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            int tail = (mHead + mCount) % mBuffer.length;
+            int chunk = Math.min(end - offset, Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+            System.arraycopy(data, offset, mBuffer, tail, chunk);
+            mCount += chunk;
+            offset += chunk;
+            parse(false);
+        }
+        parse(true);
+    }
+
+    /**
+     * Drops any partial frame, e.g. after a disconnect or when a response is given up on.
+     */
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+        mExpected = NO_FRAME;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    // Number of bytes dropped because they could not start a frame.
+    public int getDiscardedCount() {
+        return mDiscardedCount;
+    }
+
+    private void parse(boolean endOfNotification) {
+        while (mCount > 0) {
+            if (mExpected == NO_FRAME) {
+                int opcode = mBuffer[mHead] & 0xFF;
+                if ((opcode & PfxProtocol.PFX_RESPONSE_FLAG) == 0) {
+                    mHead = (mHead + 1) % mBuffer.length;                                          //Not a response code, resynchronise on the next byte
+                    mCount--;
+                    mDiscardedCount++;
+                    continue;
+                }
+                mExpected = PfxProtocol.responseLength(opcode);
+            }
+            if (mExpected == PfxProtocol.UNKNOWN_RESPONSE_LENGTH) {
+                if (!endOfNotification && mCount < mBuffer.length) {
+                    return;                                                                         //Runs to the end of the notification
+                }
+                emit(mCount);
+            }
+            else if (mCount >= mExpected) {
+                emit(mExpected);
+            }
+            else {
+                return;                                                                             //Rest of the frame is in a later notification
+            }
+        }
+    }
+
+    private void emit(int length) {
+        int first = Math.min(length, mBuffer.length - mHead);
+        System.arraycopy(mBuffer, mHead, mFrame, 0, first);
+        System.arraycopy(mBuffer, 0, mFrame, first, length - first);
+        mHead = (mHead + length) % mBuffer.length;
+        mCount -= length;
+        mExpected = NO_FRAME;
+        mFrameCount++;
+        mListener.onFrame(mFrame, length);
+    }
+}
@@ -0,0 +1,280 @@
+package com.fxbricks.android.pfxmobile;
+
+/**
+ * Constants and helpers for the PFx Brick command protocol.
+ *
+ * Commands sent to the brick are framed as {@code [[[ command payload ]]]}.  Remote control
+ * events replicate the LEGO Power Functions 8879 speed remote, 8885 joystick remote and EV3
+ * beacon; the event code is combined with the channel (0 - 3) in a single byte.
+ */
+public class PfxProtocol {
+    public static final byte FRAME_START = 0x5b;                                                    //'['
+    public static final byte FRAME_END = 0x5d;                                                      //']'
+    public static final int FRAME_DELIMITER_LENGTH = 3;
+
+    public static final byte PFX_CMD_GET_STATUS = 0x01;
+    public static final byte PFX_CMD_GET_NAME = 0x07;
+    public static final byte PFX_CMD_REMOTE_EVENT = 0x15;
+
+    // Responses are not framed, they start with the command code with the top bit set
+    public static final int PFX_RESPONSE_FLAG = 0x80;
+    public static final int STATUS_RESPONSE_LENGTH = 41;
+    public static final int NAME_RESPONSE_LENGTH = 25;
+    public static final int UNKNOWN_RESPONSE_LENGTH = -1;
+    public static final int MAX_RESPONSE_LENGTH = STATUS_RESPONSE_LENGTH;                          //Longest response with a known length
+
+    // The name response is the name, zero padded; see PfxStatus for the status response
+    private static final int NAME_OFFSET = 1;
+
+    public static final int CHANNEL_COUNT = 4;
+    public static final int CHANNEL_MASK = 0x03;
+
+    // 8879 speed remote
+    public static final int EVT_8879_TWO_BUTTONS = 0x00;
+    public static final int EVT_8879_LEFT_BUTTON = 0x04;
+    public static final int EVT_8879_RIGHT_BUTTON = 0x08;
+    public static final int EVT_8879_LEFT_INC = 0x0C;
+    public static final int EVT_8879_LEFT_DEC = 0x10;
+    public static final int EVT_8879_RIGHT_INC = 0x14;
+    public static final int EVT_8879_RIGHT_DEC = 0x18;
+
+    // 8885 joystick remote
+    public static final int EVT_8885_LEFT_FWD = 0x1C;
+    public static final int EVT_8885_LEFT_REV = 0x20;
+    public static final int EVT_8885_RIGHT_FWD = 0x24;
+    public static final int EVT_8885_RIGHT_REV = 0x28;
+    public static final int EVT_8885_LEFT_CTROFF = 0x2C;
+    public static final int EVT_8885_RIGHT_CTROFF = 0x30;
+
+    public static final int EVT_EV3_BEACON = 0x34;
+
+    public static final int MOTOR_SIDE_NONE = -1;
+    public static final int MOTOR_SIDE_LEFT = 0;
+    public static final int MOTOR_SIDE_RIGHT = 1;
+
+    // A remote event frame is [[[ 0x15 event|channel ]]]
+    public static final int REMOTE_EVENT_FRAME_LENGTH = 8;
+    private static final int REMOTE_EVENT_OFFSET = 4;
+
+    // Coalescing keys are channel * 2 + motor side
+    public static final int NO_COALESCE_KEY = -1;
+    public static final int COALESCE_KEY_COUNT = CHANNEL_COUNT * 2;
+
+    // Remote events are tagged when they are handed to the GATT queue, so that a stop can cancel
+    // the writes still waiting for the outputs it stops.  Absolute commands are tagged with their
+    // coalescing key, speed steps with the key of their output above SPEED_STEP_TAG_BASE, and the
+    // events not tied to one output with OTHER_EVENT_TAG.
+    public static final int NO_WRITE_TAG = -1;
+    public static final int SPEED_STEP_TAG_BASE = COALESCE_KEY_COUNT;
+    public static final int OTHER_EVENT_TAG = SPEED_STEP_TAG_BASE + COALESCE_KEY_COUNT;
+
+    // Payload the brick expects after PFX_CMD_GET_STATUS
+    private static final byte[] STATUS_REQUEST_PAYLOAD = {(byte) 0xa5, 0x5a, 0x6e, 0x40, 0x54, (byte) 0xa4, (byte) 0xe5};
+
+    /**
+     * @return The frame [[[ command payload ]]].
+     */
+    public static byte[] commandFrame(byte command, byte[] payload) {
+        byte[] frame = new byte[FRAME_DELIMITER_LENGTH * 2 + 1 + payload.length];
+        for (int i = 0; i < FRAME_DELIMITER_LENGTH; i++) {
+            frame[i] = FRAME_START;
+            frame[frame.length - 1 - i] = FRAME_END;
+        }
+        frame[FRAME_DELIMITER_LENGTH] = command;
+        System.arraycopy(payload, 0, frame, FRAME_DELIMITER_LENGTH + 1, payload.length);
+        return frame;
+    }
+
+    public static byte[] getStatusFrame() {
+        return commandFrame(PFX_CMD_GET_STATUS, STATUS_REQUEST_PAYLOAD);
+    }
+
+    public static byte[] getNameFrame() {
+        return commandFrame(PFX_CMD_GET_NAME, new byte[0]);
+    }
+
+    /**
+     * @return The response code the brick answers a command frame with.
+     */
+    public static int responseCode(byte[] frame) {
+        return (frame[FRAME_DELIMITER_LENGTH] & 0xFF) | PFX_RESPONSE_FLAG;
+    }
+
+    /**
+     * @return The frame for a remote control event, [[[ 0x15 event|channel ]]].
+     */
+    public static byte[] remoteEventFrame(int event, int channel) {
+        byte[] command = {FRAME_START, FRAME_START, FRAME_START, PFX_CMD_REMOTE_EVENT, 0, FRAME_END, FRAME_END, FRAME_END};
+        command[REMOTE_EVENT_OFFSET] = (byte) (event | channel);
+        return command;
+    }
+
+    /**
+     * @return Centre-off events for both outputs of every channel, back to back in one payload.
+     */
+    public static byte[] allStopFrames() {
+        byte[] frames = new byte[CHANNEL_COUNT * 2 * REMOTE_EVENT_FRAME_LENGTH];
+        int offset = 0;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            System.arraycopy(remoteEventFrame(EVT_8885_LEFT_CTROFF, channel), 0, frames, offset, REMOTE_EVENT_FRAME_LENGTH);
+            offset += REMOTE_EVENT_FRAME_LENGTH;
+            System.arraycopy(remoteEventFrame(EVT_8885_RIGHT_CTROFF, channel), 0, frames, offset, REMOTE_EVENT_FRAME_LENGTH);
+            offset += REMOTE_EVENT_FRAME_LENGTH;
+        }
+        return frames;
+    }
+
+    /**
+     * @return The length of the response starting with the given byte, including that byte, or
+     *         UNKNOWN_RESPONSE_LENGTH if the response has no fixed length.
+     */
+    public static int responseLength(int opcode) {
+        switch (opcode & 0xFF) {
+            case PFX_CMD_GET_STATUS | PFX_RESPONSE_FLAG:
+                return STATUS_RESPONSE_LENGTH;
+            case PFX_CMD_GET_NAME | PFX_RESPONSE_FLAG:
+                return NAME_RESPONSE_LENGTH;
+        }
+        return UNKNOWN_RESPONSE_LENGTH;
+    }
+
+    /**
+     * @return The brick name in a name response, up to the first zero byte.
+     */
+    public static String brickName(byte[] response) {
+        int end = NAME_OFFSET;
+        while (end < NAME_RESPONSE_LENGTH && response[end] != 0) {
+            end++;
+        }
+        return new String(response, NAME_OFFSET, end - NAME_OFFSET);
+    }
+
+    /**
+     * @return True for the events that stop a motor output: the 8879 stop buttons and the 8885
+     *         joystick returning to centre.
+     */
+    public static boolean isStopEvent(int event) {
+        switch (event) {
+            case EVT_8879_TWO_BUTTONS:
+            case EVT_8879_LEFT_BUTTON:
+            case EVT_8879_RIGHT_BUTTON:
+            case EVT_8885_LEFT_CTROFF:
+            case EVT_8885_RIGHT_CTROFF:
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True for the 8879 speed steps.  They change the speed relative to the current one,
+     *         so every step counts and none may replace another.
+     */
+    public static boolean isSpeedStep(int event) {
+        switch (event) {
+            case EVT_8879_LEFT_INC:
+            case EVT_8879_LEFT_DEC:
+            case EVT_8879_RIGHT_INC:
+            case EVT_8879_RIGHT_DEC:
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The remote event code of a remote event frame, without the channel.
+     */
+    public static int remoteEvent(byte[] frame) {
+        return frame[REMOTE_EVENT_OFFSET] & 0xFF & ~CHANNEL_MASK;
+    }
+
+    /**
+     * @return The channel of a remote event frame.
+     */
+    public static int remoteChannel(byte[] frame) {
+        return frame[REMOTE_EVENT_OFFSET] & CHANNEL_MASK;
+    }
+
+    /**
+     * @return Which motor output of a channel the remote event drives, or MOTOR_SIDE_NONE for
+     *         events that are not tied to one output.
+     */
+    public static int motorSide(int event) {
+        switch (event) {
+            case EVT_8879_LEFT_BUTTON:
+            case EVT_8879_LEFT_INC:
+            case EVT_8879_LEFT_DEC:
+            case EVT_8885_LEFT_FWD:
+            case EVT_8885_LEFT_REV:
+            case EVT_8885_LEFT_CTROFF:
+                return MOTOR_SIDE_LEFT;
+            case EVT_8879_RIGHT_BUTTON:
+            case EVT_8879_RIGHT_INC:
+            case EVT_8879_RIGHT_DEC:
+            case EVT_8885_RIGHT_FWD:
+            case EVT_8885_RIGHT_REV:
+            case EVT_8885_RIGHT_CTROFF:
+                return MOTOR_SIDE_RIGHT;
+        }
+        return MOTOR_SIDE_NONE;
+    }
+
+    /**
+     * @return True if the frame is a single remote event, [[[ 0x15 event|channel ]]].
+     */
+    public static boolean isRemoteEventFrame(byte[] frame) {
+        return frame.length == REMOTE_EVENT_FRAME_LENGTH && frame[FRAME_DELIMITER_LENGTH] == PFX_CMD_REMOTE_EVENT;
+    }
+
+    /**
+     * Absolute drive commands for the same motor output, the 8885 joystick positions and the
+     * stops, supersede each other, so only the newest one needs to be sent.  Speed steps are
+     * relative and are always sent, in order.
+     *
+     * @return The (channel, motor side) key of a remote event frame, or NO_COALESCE_KEY if the
+     *         frame has to be sent as is.
+     */
+    public static int coalesceKey(byte[] frame) {
+        if (!isRemoteEventFrame(frame)) {
+            return NO_COALESCE_KEY;
+        }
+        final int event = remoteEvent(frame);
+        final int side = isSpeedStep(event) ? MOTOR_SIDE_NONE : motorSide(event);
+        if (side == MOTOR_SIDE_NONE) {
+            return NO_COALESCE_KEY;
+        }
+        return remoteChannel(frame) * 2 + side;
+    }
+
+    /**
+     * @return The tag a frame is written with, NO_WRITE_TAG for anything but a remote event.
+     */
+    public static int writeTag(byte[] frame) {
+        if (!isRemoteEventFrame(frame)) {
+            return NO_WRITE_TAG;
+        }
+        final int event = remoteEvent(frame);
+        final int side = motorSide(event);
+        if (side == MOTOR_SIDE_NONE) {
+            return OTHER_EVENT_TAG;
+        }
+        final int key = remoteChannel(frame) * 2 + side;
+        return isSpeedStep(event) ? SPEED_STEP_TAG_BASE + key : key;
+    }
+
+    /**
+     * @return Bit mask of the write tags a stop event supersedes: the drive commands and speed
+     *         steps for the outputs it stops.
+     */
+    public static long stoppedTags(byte[] stop) {
+        final int channel = remoteChannel(stop);
+        final int stopped = motorSide(remoteEvent(stop));                                           //MOTOR_SIDE_NONE stops both
+        long tags = 0;
+        for (int side = MOTOR_SIDE_LEFT; side <= MOTOR_SIDE_RIGHT; side++) {
+            if (stopped == MOTOR_SIDE_NONE || stopped == side) {
+                final int key = channel * 2 + side;
+                tags |= 1L << key | 1L << (SPEED_STEP_TAG_BASE + key);
+            }
+        }
+        return tags;
+    }
+}
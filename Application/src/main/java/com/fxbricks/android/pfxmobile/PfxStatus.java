@@ -0,0 +1,167 @@
+package com.fxbricks.android.pfxmobile;
+
+import java.util.Arrays;
+
+/**
+ * Typed view of a PFx Brick status response (PFX_CMD_GET_STATUS | 0x80).
+ *
+ * The view wraps the raw frame without copying it and decodes each field when it is asked for;
+ * text fields are formatted once, on first access, and kept.  The wrapped array must not be
+ * modified afterwards, so the view can be handed to other threads like a {@link BrickState}.
+ *
+ * Layout, all multi-byte fields big-endian:
+ * <pre>
+ *  0       response code 0x81
+ *  1       status
+ *  2       error code
+ *  3 - 6   not decoded
+ *  7 - 8   product ID, e.g. A204
+ *  9 - 12  serial number
+ * 13 - 36  product description, zero padded
+ * 37 - 38  firmware version, major and minor in BCD
+ * 39 - 40  firmware build
+ * </pre>
+ */
+public class PfxStatus {
+    public static final int LENGTH = PfxProtocol.STATUS_RESPONSE_LENGTH;
+
+    private static final int STATUS_OFFSET = 1;
+    private static final int ERROR_OFFSET = 2;
+    private static final int PRODUCT_ID_OFFSET = 7;
+    private static final int SERIAL_NUMBER_OFFSET = 9;
+    private static final int PRODUCT_DESCRIPTION_OFFSET = 13;
+    private static final int PRODUCT_DESCRIPTION_LENGTH = 24;
+    private static final int FIRMWARE_VERSION_OFFSET = 37;
+    private static final int FIRMWARE_BUILD_OFFSET = 39;
+
+    private final byte[] mFrame;
+
+    // Formatted on first access.  Racing threads format the same text, so no lock is needed.
+    private volatile String mProductIdText;
+    private volatile String mSerialNumberText;
+    private volatile String mProductDescription;
+    private volatile String mFirmwareVersionText;
+    private volatile String mFirmwareBuildText;
+
+    /**
+     * Wraps a status response, which is not copied.
+     *
+     * @param frame At least LENGTH bytes, starting with the response code.
+     */
+    public PfxStatus(byte[] frame) {
+        if (frame.length < LENGTH) {
+            throw new IllegalArgumentException("Status response too short: " + frame.length + " bytes");
+        }
+        mFrame = frame;
+    }
+
+    /**
+     * @return A view of a copy of the response, for a frame held in a scratch array.
+     */
+    public static PfxStatus copyOf(byte[] frame) {
+        if (frame.length < LENGTH) {
+            throw new IllegalArgumentException("Status response too short: " + frame.length + " bytes");  //Not padded with zeros
+        }
+        return new PfxStatus(Arrays.copyOf(frame, LENGTH));
+    }
+
+    /**
+     * @return True if the response holds the same status as this one, so nothing needs decoding.
+     */
+    public boolean contentEquals(byte[] frame) {
+        if (frame.length < LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            if (mFrame[i] != frame[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean contentEquals(PfxStatus other) {
+        return other != null && contentEquals(other.mFrame);
+    }
+
+    public int getStatus() {
+        return mFrame[STATUS_OFFSET] & 0xFF;
+    }
+
+    public int getErrorCode() {
+        return mFrame[ERROR_OFFSET] & 0xFF;
+    }
+
+    public int getProductId() {
+        return uint16(PRODUCT_ID_OFFSET);
+    }
+
+    public long getSerialNumber() {
+        return ((long) uint16(SERIAL_NUMBER_OFFSET) << 16) | uint16(SERIAL_NUMBER_OFFSET + 2);
+    }
+
+    /**
+     * @return Major version in the high byte, minor in the low byte, e.g. 0x0140 for 1.40.
+     */
+    public int getFirmwareVersion() {
+        return uint16(FIRMWARE_VERSION_OFFSET);
+    }
+
+    public int getFirmwareBuild() {
+        return uint16(FIRMWARE_BUILD_OFFSET);
+    }
+
+    /**
+     * @return The product ID as shown on the brick, e.g. "A204".
+     */
+    public String getProductIdText() {
+        String text = mProductIdText;
+        if (text == null) {
+            mProductIdText = text = String.format("%X", getProductId());
+        }
+        return text;
+    }
+
+    public String getSerialNumberText() {
+        String text = mSerialNumberText;
+        if (text == null) {
+            mSerialNumberText = text = String.format("%08X", getSerialNumber());
+        }
+        return text;
+    }
+
+    public String getProductDescription() {
+        String text = mProductDescription;
+        if (text == null) {
+            int end = PRODUCT_DESCRIPTION_OFFSET;
+            while (end < PRODUCT_DESCRIPTION_OFFSET + PRODUCT_DESCRIPTION_LENGTH && mFrame[end] != 0) {
+                end++;
+            }
+            mProductDescription = text = new String(mFrame, PRODUCT_DESCRIPTION_OFFSET, end - PRODUCT_DESCRIPTION_OFFSET);
+        }
+        return text;
+    }
+
+    /**
+     * @return The firmware version, e.g. "1.40".
+     */
+    public String getFirmwareVersionText() {
+        String text = mFirmwareVersionText;
+        if (text == null) {
+            mFirmwareVersionText = text = String.format("%X.%02X", mFrame[FIRMWARE_VERSION_OFFSET] & 0xFF, mFrame[FIRMWARE_VERSION_OFFSET + 1] & 0xFF);
+        }
+        return text;
+    }
+
+    public String getFirmwareBuildText() {
+        String text = mFirmwareBuildText;
+        if (text == null) {
+            mFirmwareBuildText = text = String.format("%04X", getFirmwareBuild());
+        }
+        return text;
+    }
+
+    private int uint16(int offset) {
+        return ((mFrame[offset] & 0xFF) << 8) | (mFrame[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,190 @@
+package com.fxbricks.android.pfxmobile;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the brick status for as long as the link is up, at a rate that gives way to the remote
+ * controls.
+ *
+ * While drive commands are being sent the interval doubles at every poll, up to MAX_INTERVAL.
+ * Once the controls have been idle for ACTIVITY_HOLD it drops straight back to its floor, which
+ * is MIN_INTERVAL or ten times the last status round trip, whichever is longer, so polling never
+ * takes more than about a tenth of the link.  While backed off the poller still checks for the
+ * controls going idle every ACTIVITY_HOLD, so fast polling resumes soon after they do.
+ *
+ * A poll is skipped while another request is still waiting for its response, and a poll that
+ * times out counts as a round trip of the full timeout.
+ *
+ * start() and stop() must be called on the scheduler thread, which is also where polls are sent.
+ * onControlActivity() can be called from any thread.
+ */
+public class PfxTelemetryPoller {
+    public static final long MIN_INTERVAL = 500;                                                    //Milliseconds, controls idle and the link quick
+    public static final long MAX_INTERVAL = 8000;                                                   //Milliseconds, controls busy
+    public static final long ACTIVITY_HOLD = 2000;                                                  //Milliseconds a control command counts as activity
+    private static final int ROUND_TRIP_FACTOR = 10;
+
+    public interface Listener {
+        /**
+         * A status response, on the thread that passed it to the command client.
+         *
+         * @param response Scratch array holding the response, only valid until this returns.
+         */
+        void onStatus(byte[] response, int length);
+
+        /**
+         * @param reason PfxCommandClient.FAILURE_TIMEOUT or FAILURE_CANCELLED.
+         */
+        void onPollFailed(int reason);
+    }
+
+    // Package-private so that tests can drive the interval without waiting for it
+    interface Clock {
+        long nanoTime();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final PfxCommandClient mCommandClient;
+    private final ScheduledExecutorService mScheduler;
+    private final Listener mListener;
+    private final Clock mClock;
+
+    private volatile long mLastActivity;
+
+    // Only touched on the scheduler thread
+    private boolean mRunning = false;
+    private boolean mPolling = false;                                                               //A poll is waiting for its response
+    private long mPollStart;                                                                        //mClock.nanoTime() the last poll was sent at
+    private ScheduledFuture<?> mNextPoll;
+
+    private volatile long mInterval = MIN_INTERVAL;
+    private volatile long mRoundTrip = 0;                                                           //Milliseconds
+    private volatile int mPollCount = 0;
+    private volatile int mSkippedCount = 0;
+
+    public PfxTelemetryPoller(PfxCommandClient commandClient, ScheduledExecutorService scheduler, Listener listener) {
+        this(commandClient, scheduler, listener, SYSTEM_CLOCK);
+    }
+
+    PfxTelemetryPoller(PfxCommandClient commandClient, ScheduledExecutorService scheduler, Listener listener, Clock clock) {
+        mCommandClient = commandClient;
+        mScheduler = scheduler;
+        mListener = listener;
+        mClock = clock;
+        mLastActivity = clock.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ACTIVITY_HOLD);
+    }
+
+    /**
+     * Polls right away, then at the adaptive interval.
+     */
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mPollStart = mClock.nanoTime() - TimeUnit.MILLISECONDS.toNanos(MAX_INTERVAL);                //Due right away
+        mTick.run();
+    }
+
+    public void stop() {
+        mRunning = false;
+        if (mNextPoll != null) {
+            mNextPoll.cancel(false);
+            mNextPoll = null;
+        }
+    }
+
+    /**
+     * Notes that a control command was sent, so polling backs off.
+     */
+    public void onControlActivity() {
+        mLastActivity = mClock.nanoTime();
+    }
+
+    // Milliseconds until the next poll.
+    public long getInterval() {
+        return mInterval;
+    }
+
+    // Milliseconds the last status request took to be answered.
+    public long getRoundTrip() {
+        return mRoundTrip;
+    }
+
+    public int getPollCount() {
+        return mPollCount;
+    }
+
+    // Number of polls not sent because a response was still awaited.
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            mNextPoll = null;
+            if (!mRunning) {
+                return;
+            }
+            final long now = mClock.nanoTime();
+            final boolean busy = now - mLastActivity < TimeUnit.MILLISECONDS.toNanos(ACTIVITY_HOLD);
+            final long floor = Math.min(Math.max(MIN_INTERVAL, mRoundTrip * ROUND_TRIP_FACTOR), MAX_INTERVAL);
+            if (!busy) {
+                mInterval = floor;
+            }
+            long delay = mInterval - TimeUnit.NANOSECONDS.toMillis(now - mPollStart);
+            if (delay <= 0) {
+                if (mPolling || mCommandClient.getOutstandingCount() > 0) {
+                    mSkippedCount++;
+                }
+                else {
+                    mPolling = true;
+                    mPollCount++;
+                    mPollStart = now;
+                    mCommandClient.request(PfxCodec.statusFrame(), mStatusCallback);
+                    if (busy) {
+                        mInterval = Math.max(floor, Math.min(mInterval * 2, MAX_INTERVAL));
+                    }
+                }
+                delay = mInterval;
+            }
+            if (busy) {
+                delay = Math.min(delay, ACTIVITY_HOLD);                                             //Look again for the controls going idle
+            }
+            try {
+                mNextPoll = mScheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                mRunning = false;                                                                   //Scheduler shut down
+            }
+        }
+    };
+
+    private final PfxCommandClient.ResponseCallback mStatusCallback = new PfxCommandClient.ResponseCallback() {
+        @Override
+        public void onResponse(byte[] response, int length) {
+            mPolling = false;
+            mRoundTrip = TimeUnit.NANOSECONDS.toMillis(mClock.nanoTime() - mPollStart);
+            mListener.onStatus(response, length);
+        }
+
+        @Override
+        public void onFailure(int reason) {
+            mPolling = false;
+            if (PfxCommandClient.FAILURE_TIMEOUT == reason) {
+                mRoundTrip = PfxCommandClient.DEFAULT_TIMEOUT;                                      //Congested, or the response was lost
+            }
+            mListener.onPollFailed(reason);
+        }
+    };
+}
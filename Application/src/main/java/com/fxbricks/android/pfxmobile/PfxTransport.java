@@ -0,0 +1,71 @@
+package com.fxbricks.android.pfxmobile;
+
+/**
+ * Link that carries PFx command frames to a brick and its responses back.
+ *
+ * {@link BleTransport} runs over a Bluetooth LE connection; {@link LoopbackTransport} runs in
+ * memory against a simulated brick, so the protocol stack can be exercised on a plain JVM.  This
+ * interface and everything the protocol stack needs from it is free of Android classes.
+ */
+public interface PfxTransport {
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTING = 1;
+    int STATE_CONNECTED = 2;
+    int STATE_RECONNECTING = 3;
+
+    /**
+     * Receives what the transport gets from the brick.  Calls may come on any thread, but not
+     * concurrently.
+     */
+    interface Receiver {
+        /**
+         * @param state One of the STATE_ constants.
+         */
+        void onConnectionStateChanged(int state);
+
+        /**
+         * The brick accepts commands from now on.
+         */
+        void onReady();
+
+        /**
+         * Bytes sent by the brick, not necessarily whole frames.  The receiver owns one reference
+         * to the buffer and must release it when done.
+         */
+        void onData(BufferPool.Buffer data);
+
+        /**
+         * A device information value, e.g. a Device Information Service characteristic keyed by
+         * its UUID.  The receiver owns one reference to the buffer and must release it when done.
+         */
+        void onDeviceInformation(String key, BufferPool.Buffer value);
+    }
+
+    /**
+     * Sets who receives data from the brick, or null to stop receiving.
+     */
+    void setReceiver(Receiver receiver);
+
+    /**
+     * Queues a command frame.  Drive commands for the same motor output may be coalesced while
+     * they wait, and frames sent while the link is coming up are held until it is ready.
+     */
+    void send(byte[] frame);
+
+    /**
+     * Stops every output, ahead of anything waiting to be sent.
+     */
+    void stopAll();
+
+    /**
+     * Asks for the device information values, reported through Receiver.onDeviceInformation().
+     */
+    void requestDeviceInformation();
+
+    int getConnectionState();
+
+    /**
+     * Detaches from the link.  The transport cannot be used afterwards.
+     */
+    void close();
+}
@@ -15,14 +15,6 @@ public class SpeedRemoteFragment extends Fragment implements View.OnClickListene
         return fragment;
     }
 
-    private static int EVT_8879_TWO_BUTTONS = 0x00;
-    private static int EVT_8879_LEFT_BUTTON = 0x04;
-    private static int EVT_8879_RIGHT_BUTTON = 0x08;
-    private static int EVT_8879_LEFT_INC = 0x0C;
-    private static int EVT_8879_LEFT_DEC = 0x10;
-    private static int EVT_8879_RIGHT_INC = 0x14;
-    private static int EVT_8879_RIGHT_DEC = 0x18;
-
     private static int REPEAT_DELAY = 200;
 
     private DeviceControlActivity myActivity;
@@ -116,13 +108,13 @@ public class SpeedRemoteFragment extends Fragment implements View.OnClickListene
                 myCurrentChannel = 3;
                 break;
             case R.id.speed_left_button:
-                activity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(EVT_8879_LEFT_BUTTON, myCurrentChannel ));
+                activity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8879_LEFT_BUTTON, myCurrentChannel ));
                 break;
             case R.id.speed_right_button:
-                activity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(EVT_8879_RIGHT_BUTTON, myCurrentChannel ));
+                activity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8879_RIGHT_BUTTON, myCurrentChannel ));
                 break;
             case R.id.speed_both_button:
-                activity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(EVT_8879_TWO_BUTTONS, myCurrentChannel ));
+                activity.sendPFxCommand(DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8879_TWO_BUTTONS, myCurrentChannel ));
                 break;
         }
     }
@@ -133,22 +125,22 @@ public class SpeedRemoteFragment extends Fragment implements View.OnClickListene
                 switch (v.getId()) {
                     case R.id.speed_left_inc_button:
                         leftChannel = myCurrentChannel;
-                        leftCommand = DeviceControlActivity.pfxRemoteCommand(EVT_8879_LEFT_INC, leftChannel );
+                        leftCommand = DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8879_LEFT_INC, leftChannel );
                         leftHandler.post(leftRunnable);
                         break;
                     case R.id.speed_left_dec_button:
                         leftChannel = myCurrentChannel;
-                        leftCommand = DeviceControlActivity.pfxRemoteCommand(EVT_8879_LEFT_DEC, leftChannel );
+                        leftCommand = DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8879_LEFT_DEC, leftChannel );
                         leftHandler.post(leftRunnable);
                         break;
                     case R.id.speed_right_inc_button:
                         rightChannel = myCurrentChannel;
-                        rightCommand = DeviceControlActivity.pfxRemoteCommand(EVT_8879_RIGHT_INC, rightChannel );
+                        rightCommand = DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8879_RIGHT_INC, rightChannel );
                         rightHandler.post(rightRunnable);
                         break;
                     case R.id.speed_right_dec_button:
                         rightChannel = myCurrentChannel;
-                        rightCommand = DeviceControlActivity.pfxRemoteCommand(EVT_8879_RIGHT_DEC, rightChannel );
+                        rightCommand = DeviceControlActivity.pfxRemoteCommand(PfxProtocol.EVT_8879_RIGHT_DEC, rightChannel );
                         rightHandler.post(rightRunnable);
                         break;
                 }
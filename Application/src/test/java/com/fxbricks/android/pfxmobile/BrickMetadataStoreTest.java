@@ -0,0 +1,47 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BrickMetadataStoreTest {
+    private static final String ADDRESS = "00:1E:C0:12:34:56";
+
+    @Test
+    public void metadataIsKeptWhileTheFirmwareStaysTheSame() {
+        final String firmware = BrickMetadataStore.metadataFirmwareVersion(cached("Loco", "1.40"));
+        assertEquals("1.40", firmware);
+        assertFalse(BrickMetadataStore.isStale(firmware, "1.40"));
+    }
+
+    @Test
+    public void firmwareChangeInvalidatesTheMetadata() {
+        final String firmware = BrickMetadataStore.metadataFirmwareVersion(cached("Loco", "1.40"));
+        assertTrue(BrickMetadataStore.isStale(firmware, "1.41"));
+        assertTrue(BrickMetadataStore.isStale(firmware, BrickState.UNKNOWN));
+    }
+
+    @Test
+    public void metadataThatWasNeverReadIsStale() {
+        assertNull(BrickMetadataStore.metadataFirmwareVersion(null));
+        assertNull(BrickMetadataStore.metadataFirmwareVersion(cached(BrickState.UNKNOWN, "1.40")));   //Saved before the name arrived
+        assertTrue(BrickMetadataStore.isStale(null, "1.40"));
+    }
+
+    @Test
+    public void legacyNameIsReadAgainWithTheFirstStatus() {
+        final String firmware = BrickMetadataStore.metadataFirmwareVersion(cached("Loco", BrickState.UNKNOWN));
+        assertEquals(BrickState.UNKNOWN, firmware);                                                 //Name known, no need to ask before the status
+        assertTrue(BrickMetadataStore.isStale(firmware, "1.40"));
+    }
+
+    // A state as load() returns it.
+    private static BrickState cached(String name, String firmware) {
+        return new BrickState(ADDRESS, name, firmware, "A204", new HashMap<String, String>());
+    }
+}
@@ -0,0 +1,65 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class BrickStateTest {
+    private static final String ADDRESS = "00:1E:C0:12:34:56";
+
+    private final Map<String, String> mValues = new HashMap<>();
+
+    @Test
+    public void firstStateChangesEverything() {
+        assertEquals(BrickState.ALL_FIELDS, state("Brick", "1.40", "A204", null).changedFields(null));
+    }
+
+    @Test
+    public void equalStatesChangeNothing() {
+        mValues.put("2a24", "PFx Brick");
+        final BrickState previous = state("Brick", "1.40", "A204", status(0x00));
+        assertEquals(0, state("Brick", "1.40", "A204", status(0x00)).changedFields(previous));     //Equal, not the same objects
+        assertEquals(0, previous.changedFields(previous));
+    }
+
+    @Test
+    public void eachFieldIsReportedOnItsOwn() {
+        final BrickState previous = state("Brick", "1.40", "A204", null);
+        assertEquals(BrickState.FIELD_BRICK_NAME, state("Loco", "1.40", "A204", null).changedFields(previous));
+        assertEquals(BrickState.FIELD_FIRMWARE_VERSION, state("Brick", "1.41", "A204", null).changedFields(previous));
+        assertEquals(BrickState.FIELD_HARDWARE_VERSION, state("Brick", "1.40", "A208", null).changedFields(previous));
+        mValues.put("2a24", "PFx Brick");
+        assertEquals(BrickState.FIELD_CHARACTERISTIC_VALUES, state("Brick", "1.40", "A204", null).changedFields(previous));
+    }
+
+    @Test
+    public void statusChangesWithItsContents() {
+        final BrickState previous = state("Brick", "1.40", "A204", status(0x00));
+        assertEquals(BrickState.FIELD_STATUS, state("Brick", "1.40", "A204", status(0x03)).changedFields(previous));
+        assertEquals(BrickState.FIELD_STATUS, state("Brick", "1.40", "A204", null).changedFields(previous));
+        assertEquals(BrickState.FIELD_STATUS, previous.changedFields(state("Brick", "1.40", "A204", null)));
+        assertEquals(0, state("Brick", "1.40", "A204", null).changedFields(state("Brick", "1.40", "A204", null)));
+    }
+
+    @Test
+    public void severalChangesAreCombined() {
+        final BrickState previous = state("Brick", "1.40", "A204", status(0x00));
+        assertEquals(BrickState.FIELD_BRICK_NAME | BrickState.FIELD_STATUS,
+                state("Loco", "1.40", "A204", status(0x01)).changedFields(previous));
+    }
+
+    private BrickState state(String name, String firmware, String hardware, PfxStatus status) {
+        return new BrickState(ADDRESS, name, firmware, hardware, mValues, status);
+    }
+
+    // A status response that only differs in its error code.
+    private static PfxStatus status(int errorCode) {
+        final byte[] response = new byte[PfxStatus.LENGTH];
+        response[0] = (byte) (PfxProtocol.PFX_CMD_GET_STATUS | PfxProtocol.PFX_RESPONSE_FLAG);
+        response[2] = (byte) errorCode;
+        return new PfxStatus(response);
+    }
+}
@@ -0,0 +1,84 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+    private final BufferPool mPool = new BufferPool(8, 2);
+
+    @Test
+    public void releasedBufferIsReused() {
+        final BufferPool.Buffer first = mPool.obtain(new byte[]{1, 2, 3});
+        first.release();
+        final BufferPool.Buffer second = mPool.obtain(new byte[]{4, 5});
+        assertSame(first, second);
+        assertEquals(2, second.length());
+        assertArrayEquals(new byte[]{4, 5}, second.toByteArray());
+    }
+
+    @Test
+    public void bufferIsOnlyRecycledByTheLastRelease() {
+        final BufferPool.Buffer shared = mPool.obtain(new byte[]{1});
+        shared.retain();                                                                            //A second consumer
+        shared.release();
+        final BufferPool.Buffer other = mPool.obtain(new byte[]{2});
+        assertNotSame(shared, other);
+        assertArrayEquals(new byte[]{1}, shared.toByteArray());                                     //Still held, untouched
+
+        shared.release();
+        assertSame(shared, mPool.obtain(new byte[]{3}));
+    }
+
+    @Test
+    public void oversizedBufferIsNeverPooled() {
+        final byte[] value = new byte[20];
+        value[19] = 0x55;
+        final BufferPool.Buffer oversized = mPool.obtain(value);
+        assertEquals(20, oversized.length());
+        assertArrayEquals(value, oversized.toByteArray());
+        oversized.release();
+        final BufferPool.Buffer small = mPool.obtain(new byte[]{1});
+        assertNotSame(oversized, small);
+        assertEquals(8, small.data().length);
+    }
+
+    @Test
+    public void exhaustedPoolHandsOutNewBuffersAndKeepsOnlyItsSize() {
+        final BufferPool.Buffer[] buffers = obtainAll(3);
+        for (BufferPool.Buffer buffer : buffers) {
+            buffer.release();                                                                       //Only two fit back in
+        }
+        final BufferPool.Buffer[] again = obtainAll(3);
+        final Set<BufferPool.Buffer> before = new HashSet<>(Arrays.asList(buffers));                //Buffers compare by identity
+        assertTrue(before.contains(again[0]));
+        assertTrue(before.contains(again[1]));
+        assertFalse(before.contains(again[2]));                                                     //Pool empty again, a new one
+    }
+
+    @Test
+    public void copiesTheRequestedRange() {
+        final BufferPool.Buffer buffer = mPool.obtain(new byte[]{0x10, 0x41, 0x42, (byte) 0xFF}, 1, 2);
+        assertEquals(2, buffer.length());
+        assertEquals("AB", buffer.toText());
+        assertEquals("41 42 ", buffer.toHexString());
+        assertEquals("FF ", mPool.obtain(new byte[]{(byte) 0xFF}).toHexString());
+    }
+
+    private BufferPool.Buffer[] obtainAll(int count) {
+        final BufferPool.Buffer[] buffers = new BufferPool.Buffer[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = mPool.obtain(new byte[]{(byte) i});
+        }
+        return buffers;
+    }
+}
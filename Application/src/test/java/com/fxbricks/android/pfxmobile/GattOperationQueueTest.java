@@ -0,0 +1,185 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.Test;
+
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GattOperationQueueTest {
+    private final LinkedList<GattOperationQueue.Operation> mPending = new LinkedList<>();
+    private final LinkedList<GattOperationQueue.Operation> mInFlight = new LinkedList<>();
+
+    @Test
+    public void higherPriorityWriteGoesAheadOfAWriteThatHasNotStarted() {
+        queueWrite(1, 3, GattOperationQueue.PRIORITY_DEFAULT);
+        final GattOperationQueue.Operation urgent = queueWrite(2, 1, GattOperationQueue.PRIORITY_HIGHEST)[0];
+        assertSame(urgent, mPending.peek());
+    }
+
+    @Test
+    public void higherPriorityWriteWaitsForTheRestOfAHalfSentWrite() {
+        final GattOperationQueue.Operation[] job = queueWrite(1, 4, GattOperationQueue.PRIORITY_DEFAULT);
+        final GattOperationQueue.Operation background = write(3, GattOperationQueue.PRIORITY_BACKGROUND);
+        GattOperationQueue.insert(mPending, background);
+        mPending.poll();                                                                            //First two fragments sent
+        mPending.poll();
+
+        final GattOperationQueue.Operation urgent = queueWrite(2, 1, GattOperationQueue.PRIORITY_HIGHEST)[0];
+        assertEquals(4, mPending.size());
+        assertSame(job[2], mPending.get(0));
+        assertSame(job[3], mPending.get(1));
+        assertSame(urgent, mPending.get(2));                                                        //Still ahead of lower priorities
+        assertSame(background, mPending.get(3));
+    }
+
+    @Test
+    public void startedJobIsOnlyReportedOnceItsFirstFragmentHasGone() {
+        queueWrite(7, 2, GattOperationQueue.PRIORITY_DEFAULT);
+        assertEquals(0, GattOperationQueue.startedJob(mPending));
+        mPending.poll();
+        assertEquals(7, GattOperationQueue.startedJob(mPending));
+        mPending.poll();
+        assertEquals(0, GattOperationQueue.startedJob(mPending));
+    }
+
+    @Test
+    public void splitFragmentsToTheWriteLength() {
+        final byte[] payload = new byte[45];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        final byte[][] fragments = GattOperationQueue.split(payload, 20);
+        assertEquals(3, fragments.length);
+        assertEquals(20, fragments[0].length);
+        assertEquals(20, fragments[1].length);
+        assertEquals(5, fragments[2].length);
+        assertEquals(20, fragments[1][0]);
+        assertEquals(44, fragments[2][4]);
+    }
+
+    @Test
+    public void splitLeavesAShortOrEmptyValueAlone() {
+        final byte[] payload = {1, 2, 3};
+        assertSame(payload, GattOperationQueue.split(payload, 20)[0]);
+        final byte[][] empty = GattOperationQueue.split(new byte[0], 20);
+        assertEquals(1, empty.length);
+        assertArrayEquals(new byte[0], empty[0]);
+    }
+
+    @Test
+    public void pipelinedWritesOverlapUpToTheWindow() {
+        assertTrue(GattOperationQueue.canStart(mInFlight, pipelinedWrite(), 2));
+        mInFlight.add(pipelinedWrite());
+        assertTrue(GattOperationQueue.canStart(mInFlight, pipelinedWrite(), 2));
+        mInFlight.add(pipelinedWrite());
+        assertFalse(GattOperationQueue.canStart(mInFlight, pipelinedWrite(), 2));
+        mInFlight.poll();                                                                           //A write callback frees a credit
+        assertTrue(GattOperationQueue.canStart(mInFlight, pipelinedWrite(), 2));
+    }
+
+    @Test
+    public void onlyPipelinedWritesOverlap() {
+        final GattOperationQueue.Operation acknowledged = write(1, GattOperationQueue.PRIORITY_DEFAULT);
+        assertTrue(GattOperationQueue.canStart(mInFlight, acknowledged, 4));
+        mInFlight.add(acknowledged);
+        assertFalse(GattOperationQueue.canStart(mInFlight, pipelinedWrite(), 4));
+        mInFlight.clear();
+        mInFlight.add(pipelinedWrite());
+        assertFalse(GattOperationQueue.canStart(mInFlight, write(2, GattOperationQueue.PRIORITY_DEFAULT), 4));
+        assertFalse(GattOperationQueue.canStart(mInFlight, pipelinedWrite(), 1));                   //Serialized
+    }
+
+    @Test
+    public void stepStepStopLeavesNothingBehindTheStop() {
+        final int[] cancelled = new int[1];
+        final GattOperationQueue.Callback callback = new GattOperationQueue.Callback() {
+            @Override
+            public void onOperationComplete(int status) {
+                if (GattOperationQueue.STATUS_CANCELLED == status) {
+                    cancelled[0]++;
+                }
+            }
+        };
+        queueCommand(1, PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8879_LEFT_INC, 0), callback);
+        queueCommand(2, PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8879_LEFT_INC, 0), callback);
+        final GattOperationQueue.Operation otherOutput = queueCommand(3, PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8879_RIGHT_INC, 0), callback);
+
+        final byte[] stop = PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8879_LEFT_BUTTON, 0);
+        GattOperationQueue.cancelPendingWrites(mPending, PfxProtocol.stoppedTags(stop));           //As BrickConnection does before writing a stop
+        final GattOperationQueue.Operation stopWrite = queueCommand(4, stop, callback);
+        assertEquals(2, cancelled[0]);
+        assertEquals(2, mPending.size());
+        assertSame(stopWrite, mPending.get(0));
+        assertSame(otherOutput, mPending.get(1));
+    }
+
+    @Test
+    public void stopForBothOutputsCancelsStepsAndDriveCommandsOfTheChannel() {
+        queueCommand(1, PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8879_LEFT_INC, 2), null);
+        queueCommand(2, PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8885_RIGHT_FWD, 2), null);
+        final GattOperationQueue.Operation otherChannel = queueCommand(3, PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8879_LEFT_INC, 3), null);
+        GattOperationQueue.cancelPendingWrites(mPending, PfxProtocol.stoppedTags(PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8879_TWO_BUTTONS, 2)));
+        assertEquals(1, mPending.size());
+        assertSame(otherChannel, mPending.peek());
+    }
+
+    @Test
+    public void cancellingEveryTagLeavesQueriesAlone() {
+        final GattOperationQueue.Operation query = queueCommand(1, PfxCodec.statusFrame(), null);
+        queueCommand(2, PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8879_RIGHT_DEC, 0), null);
+        queueCommand(3, PfxProtocol.remoteEventFrame(PfxProtocol.EVT_EV3_BEACON, 1), null);
+        GattOperationQueue.cancelPendingWrites(mPending, -1L);                                      //TAG_ANY, as stopAll() does
+        assertEquals(1, mPending.size());
+        assertSame(query, mPending.peek());
+    }
+
+    @Test
+    public void startedWriteIsNotCancelled() {
+        final GattOperationQueue.Operation[] job = queueWrite(1, 2, GattOperationQueue.PRIORITY_DEFAULT);
+        job[0].tag = job[1].tag = 0;
+        mPending.poll();
+        GattOperationQueue.cancelPendingWrites(mPending, -1L);
+        assertSame(job[1], mPending.peek());
+    }
+
+    // Queues a single fragment PFx command the way BrickConnection does.
+    private GattOperationQueue.Operation queueCommand(int job, byte[] frame, GattOperationQueue.Callback callback) {
+        final GattOperationQueue.Operation operation = new GattOperationQueue.Operation(GattOperationQueue.OP_WRITE_CHARACTERISTIC, callback);
+        operation.job = job;
+        operation.value = frame;
+        operation.priority = PfxCommandQueue.priority(frame);
+        operation.tag = PfxProtocol.writeTag(frame);
+        GattOperationQueue.insert(mPending, operation);
+        return operation;
+    }
+
+    // Queues a write of the given number of fragments the way writeCharacteristic() does.
+    private GattOperationQueue.Operation[] queueWrite(int job, int count, int priority) {
+        final GattOperationQueue.Operation[] fragments = new GattOperationQueue.Operation[count];
+        for (int i = 0; i < count; i++) {
+            fragments[i] = write(job, priority);
+            fragments[i].firstFragment = i == 0;
+            fragments[i].lastFragment = i == count - 1;
+            GattOperationQueue.insert(mPending, fragments[i]);
+        }
+        return fragments;
+    }
+
+    private static GattOperationQueue.Operation write(int job, int priority) {
+        final GattOperationQueue.Operation operation = new GattOperationQueue.Operation(GattOperationQueue.OP_WRITE_CHARACTERISTIC, null);
+        operation.job = job;
+        operation.priority = priority;
+        return operation;
+    }
+
+    private static GattOperationQueue.Operation pipelinedWrite() {
+        final GattOperationQueue.Operation operation = write(1, GattOperationQueue.PRIORITY_DEFAULT);
+        operation.pipelined = true;
+        return operation;
+    }
+}
@@ -0,0 +1,57 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PfxCodecTest {
+    private static final int[] EVENTS = {
+            PfxProtocol.EVT_8879_TWO_BUTTONS, PfxProtocol.EVT_8879_LEFT_BUTTON, PfxProtocol.EVT_8879_RIGHT_BUTTON,
+            PfxProtocol.EVT_8879_LEFT_INC, PfxProtocol.EVT_8879_LEFT_DEC, PfxProtocol.EVT_8879_RIGHT_INC,
+            PfxProtocol.EVT_8879_RIGHT_DEC, PfxProtocol.EVT_8885_LEFT_FWD, PfxProtocol.EVT_8885_LEFT_REV,
+            PfxProtocol.EVT_8885_RIGHT_FWD, PfxProtocol.EVT_8885_RIGHT_REV, PfxProtocol.EVT_8885_LEFT_CTROFF,
+            PfxProtocol.EVT_8885_RIGHT_CTROFF, PfxProtocol.EVT_EV3_BEACON};
+
+    @Test
+    public void remoteEventFramesMatchTheProtocolEncoder() {
+        for (int event : EVENTS) {
+            for (int channel = 0; channel < PfxProtocol.CHANNEL_COUNT; channel++) {
+                final byte[] frame = PfxCodec.remoteEventFrame(event, channel);
+                assertArrayEquals("event 0x" + Integer.toHexString(event) + " channel " + channel,
+                        PfxProtocol.remoteEventFrame(event, channel), frame);
+                assertSame(frame, PfxCodec.remoteEventFrame(event, channel));                       //Built once, shared
+            }
+        }
+    }
+
+    @Test
+    public void queryAndStopFramesMatchTheProtocolEncoder() {
+        assertArrayEquals(PfxProtocol.getStatusFrame(), PfxCodec.statusFrame());
+        assertArrayEquals(PfxProtocol.getNameFrame(), PfxCodec.nameFrame());
+        assertArrayEquals(PfxProtocol.allStopFrames(), PfxCodec.allStopFrames());
+        assertSame(PfxCodec.statusFrame(), PfxCodec.statusFrame());
+        assertEquals(PfxProtocol.CHANNEL_COUNT * 2 * PfxProtocol.REMOTE_EVENT_FRAME_LENGTH, PfxCodec.allStopFrames().length);
+    }
+
+    @Test
+    public void eventsAndChannelsOutOfRangeAreRejected() {
+        assertRejected(PfxProtocol.EVT_EV3_BEACON + PfxProtocol.CHANNEL_COUNT, 0);                 //Past the EV3 beacon
+        assertRejected(PfxProtocol.EVT_8885_LEFT_FWD | 1, 0);                                       //Channel bits in the event
+        assertRejected(-PfxProtocol.CHANNEL_COUNT, 0);
+        assertRejected(PfxProtocol.EVT_8885_LEFT_FWD, PfxProtocol.CHANNEL_COUNT);
+        assertRejected(PfxProtocol.EVT_8885_LEFT_FWD, -1);
+    }
+
+    // Fails unless the codec refuses the event and channel.
+    private static void assertRejected(int event, int channel) {
+        try {
+            PfxCodec.remoteEventFrame(event, channel);
+            fail("Accepted event 0x" + Integer.toHexString(event) + " on channel " + channel);
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PfxCommandClientTest {
+    private static final int NONE = 0;
+    private static final int RESPONSE = -1;
+
+    // Records how a request ended
+    private static class Result implements PfxCommandClient.ResponseCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int outcome = NONE;                                                                //RESPONSE or the failure reason
+        volatile byte marker;
+
+        @Override
+        public void onResponse(byte[] response, int length) {
+            marker = response[1];
+            outcome = RESPONSE;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(int reason) {
+            outcome = reason;
+            done.countDown();
+        }
+    }
+
+    private final List<byte[]> mSent = new ArrayList<>();
+    private ScheduledExecutorService mScheduler;
+    private PfxCommandClient mClient;
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mClient = new PfxCommandClient(new PfxCommandClient.CommandSender() {
+            @Override
+            public void send(byte[] frame) {
+                synchronized (mSent) {
+                    mSent.add(frame);
+                }
+            }
+        }, mScheduler);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void responsesGoToTheOldestRequestForTheSameCommand() {
+        final Result first = new Result();
+        final Result second = new Result();
+        mClient.request(PfxCodec.statusFrame(), first);
+        mClient.request(PfxCodec.statusFrame(), second);
+        assertTrue(mClient.onFrame(response(PfxProtocol.PFX_CMD_GET_STATUS, 1), 2));
+        assertEquals(RESPONSE, first.outcome);
+        assertEquals(1, first.marker);
+        assertEquals(NONE, second.outcome);
+        assertTrue(mClient.onFrame(response(PfxProtocol.PFX_CMD_GET_STATUS, 2), 2));
+        assertEquals(2, second.marker);
+    }
+
+    @Test
+    public void responsesToOtherCommandsDoNotBlock() {
+        final Result status = new Result();
+        final Result name = new Result();
+        mClient.request(PfxCodec.statusFrame(), status);
+        mClient.request(PfxCodec.nameFrame(), name);
+        mClient.onFrame(response(PfxProtocol.PFX_CMD_GET_NAME, 7), 2);
+        assertEquals(NONE, status.outcome);
+        assertEquals(RESPONSE, name.outcome);
+    }
+
+    @Test
+    public void requestsWaitForRoomOnTheLink() {
+        mClient.setMaxOutstanding(2);
+        final byte[] third = PfxCodec.nameFrame();
+        mClient.request(PfxCodec.statusFrame(), new Result());
+        mClient.request(PfxCodec.statusFrame(), new Result());
+        mClient.request(third, new Result());
+        assertEquals(2, mSent.size());
+        assertEquals(2, mClient.getOutstandingCount());
+        mClient.onFrame(response(PfxProtocol.PFX_CMD_GET_STATUS, 1), 2);
+        assertEquals(3, mSent.size());
+        assertSame(third, mSent.get(2));
+    }
+
+    @Test
+    public void lateResponseAfterTimeoutIsUnsolicited() throws Exception {
+        mClient.setMaxOutstanding(1);
+        final Result timedOut = new Result();
+        final Result next = new Result();
+        mClient.request(PfxCodec.statusFrame(), 20, timedOut);
+        mClient.request(PfxCodec.nameFrame(), next);
+        assertTrue(timedOut.done.await(1, TimeUnit.SECONDS));
+        mScheduler.submit(new Runnable() {                                                          //Wait for the rest of the timeout task
+            @Override
+            public void run() {
+            }
+        }).get();
+        assertEquals(PfxCommandClient.FAILURE_TIMEOUT, timedOut.outcome);
+        assertEquals(1, mClient.getTimeoutCount());
+        assertEquals(2, mSent.size());                                                              //The timeout made room for the next request
+
+        assertFalse(mClient.onFrame(response(PfxProtocol.PFX_CMD_GET_STATUS, 1), 2));
+        assertEquals(1, mClient.getUnsolicitedCount());
+        assertEquals(NONE, next.outcome);
+        assertTrue(mClient.onFrame(response(PfxProtocol.PFX_CMD_GET_NAME, 2), 2));
+        assertEquals(RESPONSE, next.outcome);
+    }
+
+    @Test
+    public void answeredRequestDoesNotTimeOut() throws InterruptedException {
+        final Result answered = new Result();
+        mClient.request(PfxCodec.statusFrame(), 20, answered);
+        mClient.onFrame(response(PfxProtocol.PFX_CMD_GET_STATUS, 1), 2);
+        Thread.sleep(60);
+        assertEquals(RESPONSE, answered.outcome);
+        assertEquals(0, mClient.getTimeoutCount());
+    }
+
+    @Test
+    public void cancelAllFailsWaitingAndOutstandingRequests() {
+        mClient.setMaxOutstanding(1);
+        final Result outstanding = new Result();
+        final Result waiting = new Result();
+        mClient.request(PfxCodec.statusFrame(), outstanding);
+        mClient.request(PfxCodec.statusFrame(), waiting);
+        mClient.cancelAll();
+        assertEquals(PfxCommandClient.FAILURE_CANCELLED, outstanding.outcome);
+        assertEquals(PfxCommandClient.FAILURE_CANCELLED, waiting.outcome);
+        assertEquals(0, mClient.getOutstandingCount());
+        assertFalse(mClient.onFrame(response(PfxProtocol.PFX_CMD_GET_STATUS, 1), 2));
+    }
+
+    // A two byte response to the command, the second byte identifying it.
+    private static byte[] response(byte command, int marker) {
+        return new byte[]{(byte) (command | PfxProtocol.PFX_RESPONSE_FLAG), (byte) marker};
+    }
+}
@@ -0,0 +1,161 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PfxCommandQueueTest {
+    private final PfxCommandQueue mQueue = new PfxCommandQueue();
+
+    @Test
+    public void newerDriveCommandTakesThePlaceOfTheWaitingOne() {
+        final byte[] leftFwd = event(PfxProtocol.EVT_8885_LEFT_FWD, 0);
+        final byte[] rightFwd = event(PfxProtocol.EVT_8885_RIGHT_FWD, 0);
+        final byte[] leftRev = event(PfxProtocol.EVT_8885_LEFT_REV, 0);
+        mQueue.offer(leftFwd);
+        mQueue.offer(rightFwd);
+        mQueue.offer(leftRev);
+        assertEquals(2, mQueue.size());
+        assertEquals(1, mQueue.getCoalescedCount());
+        assertSame(leftRev, mQueue.poll());                                                         //In the left output's original place
+        assertSame(rightFwd, mQueue.poll());
+        assertNull(mQueue.poll());
+    }
+
+    @Test
+    public void outputsAndChannelsAreCoalescedSeparately() {
+        final byte[] channel0 = event(PfxProtocol.EVT_8885_LEFT_FWD, 0);
+        final byte[] channel1 = event(PfxProtocol.EVT_8885_LEFT_FWD, 1);
+        final byte[] right = event(PfxProtocol.EVT_8885_RIGHT_REV, 0);
+        mQueue.offer(channel0);
+        mQueue.offer(channel1);
+        mQueue.offer(right);
+        assertEquals(0, mQueue.getCoalescedCount());
+        assertSame(channel0, mQueue.poll());
+        assertSame(channel1, mQueue.poll());
+        assertSame(right, mQueue.poll());
+    }
+
+    @Test
+    public void stopGoesAheadAndReplacesTheWaitingDriveCommand() {
+        final byte[] status = PfxCodec.statusFrame();
+        final byte[] leftFwd = event(PfxProtocol.EVT_8885_LEFT_FWD, 0);
+        final byte[] rightFwd = event(PfxProtocol.EVT_8885_RIGHT_FWD, 0);
+        final byte[] leftStop = event(PfxProtocol.EVT_8885_LEFT_CTROFF, 0);
+        mQueue.offer(status);
+        mQueue.offer(leftFwd);
+        mQueue.offer(rightFwd);
+        mQueue.offer(leftStop);
+        assertSame(leftStop, mQueue.poll());
+        assertSame(rightFwd, mQueue.poll());
+        assertSame(status, mQueue.poll());
+        assertNull(mQueue.poll());
+    }
+
+    @Test
+    public void driveCommandAfterAStopReplacesTheStop() {
+        final byte[] leftStop = event(PfxProtocol.EVT_8885_LEFT_CTROFF, 0);
+        final byte[] leftFwd = event(PfxProtocol.EVT_8885_LEFT_FWD, 0);
+        mQueue.offer(leftStop);
+        mQueue.offer(leftFwd);
+        assertEquals(1, mQueue.size());
+        assertSame(leftFwd, mQueue.poll());
+    }
+
+    @Test
+    public void speedStepsAreNeverCoalesced() {
+        final byte[] inc1 = event(PfxProtocol.EVT_8879_LEFT_INC, 0);
+        final byte[] inc2 = event(PfxProtocol.EVT_8879_LEFT_INC, 0);
+        final byte[] dec = event(PfxProtocol.EVT_8879_LEFT_DEC, 0);
+        mQueue.offer(inc1);
+        mQueue.offer(inc2);
+        mQueue.offer(dec);
+        assertEquals(3, mQueue.size());
+        assertEquals(0, mQueue.getCoalescedCount());
+        assertSame(inc1, mQueue.poll());
+        assertSame(inc2, mQueue.poll());
+        assertSame(dec, mQueue.poll());
+    }
+
+    @Test
+    public void stopDropsTheSpeedStepsOfItsOutputs() {
+        final byte[] leftInc = event(PfxProtocol.EVT_8879_LEFT_INC, 0);
+        final byte[] rightInc = event(PfxProtocol.EVT_8879_RIGHT_INC, 0);
+        final byte[] otherChannel = event(PfxProtocol.EVT_8879_LEFT_INC, 1);
+        final byte[] leftStop = event(PfxProtocol.EVT_8879_LEFT_BUTTON, 0);
+        mQueue.offer(leftInc);
+        mQueue.offer(rightInc);
+        mQueue.offer(otherChannel);
+        mQueue.offer(leftStop);
+        assertSame(leftStop, mQueue.poll());
+        assertSame(rightInc, mQueue.poll());
+        assertSame(otherChannel, mQueue.poll());
+        assertNull(mQueue.poll());
+
+        mQueue.offer(leftInc);
+        mQueue.offer(rightInc);
+        mQueue.offer(event(PfxProtocol.EVT_8879_TWO_BUTTONS, 0));                                   //Stops both outputs
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void fullQueueRefusesEverythingButStops() {
+        final PfxCommandQueue queue = new PfxCommandQueue(2);
+        assertTrue(queue.offer(PfxCodec.statusFrame()));
+        assertTrue(queue.offer(PfxCodec.nameFrame()));
+        assertFalse(queue.offer(event(PfxProtocol.EVT_8885_LEFT_FWD, 0)));
+        assertTrue(queue.offer(event(PfxProtocol.EVT_8885_LEFT_CTROFF, 0)));
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void clearRemoteEventsLeavesQueries() {
+        final byte[] status = PfxCodec.statusFrame();
+        mQueue.offer(event(PfxProtocol.EVT_8885_LEFT_FWD, 0));
+        mQueue.offer(status);
+        mQueue.offer(event(PfxProtocol.EVT_8885_RIGHT_CTROFF, 0));
+        mQueue.clearRemoteEvents();
+        assertSame(status, mQueue.poll());
+        assertNull(mQueue.poll());
+    }
+
+    @Test
+    public void removeKeyDropsTheWaitingDriveCommand() {
+        final byte[] leftFwd = event(PfxProtocol.EVT_8885_LEFT_FWD, 2);
+        mQueue.offer(leftFwd);
+        assertTrue(mQueue.removeKey(PfxProtocol.coalesceKey(leftFwd)));
+        assertFalse(mQueue.removeKey(PfxProtocol.coalesceKey(leftFwd)));
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void removeStoppedDropsWhatWaitsForTheStoppedOutputs() {
+        final byte[] status = PfxCodec.statusFrame();
+        final byte[] otherChannel = event(PfxProtocol.EVT_8885_LEFT_FWD, 1);
+        mQueue.offer(event(PfxProtocol.EVT_8885_LEFT_FWD, 0));
+        mQueue.offer(event(PfxProtocol.EVT_8879_RIGHT_INC, 0));
+        mQueue.offer(status);
+        mQueue.offer(otherChannel);
+        mQueue.removeStopped(event(PfxProtocol.EVT_8879_TWO_BUTTONS, 0));                           //Written directly, stops both outputs
+        assertSame(otherChannel, mQueue.poll());
+        assertSame(status, mQueue.poll());
+        assertNull(mQueue.poll());
+
+        final byte[] right = event(PfxProtocol.EVT_8885_RIGHT_REV, 2);
+        mQueue.offer(event(PfxProtocol.EVT_8885_LEFT_REV, 2));
+        mQueue.offer(right);
+        mQueue.removeStopped(event(PfxProtocol.EVT_8885_LEFT_CTROFF, 2));
+        assertSame(right, mQueue.poll());
+        assertNull(mQueue.poll());
+    }
+
+    // A fresh frame, so that frames can be told apart by identity.
+    private static byte[] event(int event, int channel) {
+        return PfxProtocol.remoteEventFrame(event, channel);
+    }
+}
@@ -0,0 +1,143 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PfxFrameParserTest {
+    private final List<byte[]> mFrames = new ArrayList<>();
+    private PfxFrameParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new PfxFrameParser(new PfxFrameParser.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                mFrames.add(Arrays.copyOf(frame, length));                                          //The frame is a scratch array
+            }
+        });
+    }
+
+    @Test
+    public void responseSplitAcrossNotifications() {
+        final byte[] status = response(PfxProtocol.PFX_CMD_GET_STATUS, PfxProtocol.STATUS_RESPONSE_LENGTH);
+        mParser.feed(status, 0, 20);
+        mParser.feed(status, 20, 20);
+        assertEquals(0, mFrames.size());
+        mParser.feed(status, 40, 1);
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(status, mFrames.get(0));
+    }
+
+    @Test
+    public void twoResponsesInOneNotification() {
+        final byte[] name = response(PfxProtocol.PFX_CMD_GET_NAME, PfxProtocol.NAME_RESPONSE_LENGTH);
+        final byte[] status = response(PfxProtocol.PFX_CMD_GET_STATUS, PfxProtocol.STATUS_RESPONSE_LENGTH);
+        mParser.feed(concat(name, status));
+        assertEquals(2, mFrames.size());
+        assertArrayEquals(name, mFrames.get(0));
+        assertArrayEquals(status, mFrames.get(1));
+    }
+
+    @Test
+    public void responseEndingInTheNextNotificationWithAnotherOne() {
+        final byte[] name = response(PfxProtocol.PFX_CMD_GET_NAME, PfxProtocol.NAME_RESPONSE_LENGTH);
+        final byte[] status = response(PfxProtocol.PFX_CMD_GET_STATUS, PfxProtocol.STATUS_RESPONSE_LENGTH);
+        final byte[] stream = concat(name, status);
+        mParser.feed(stream, 0, 10);
+        mParser.feed(stream, 10, stream.length - 10);
+        assertEquals(2, mFrames.size());
+        assertArrayEquals(name, mFrames.get(0));
+        assertArrayEquals(status, mFrames.get(1));
+    }
+
+    @Test
+    public void bytesThatCannotStartAResponseAreDiscarded() {
+        final byte[] name = response(PfxProtocol.PFX_CMD_GET_NAME, PfxProtocol.NAME_RESPONSE_LENGTH);
+        mParser.feed(concat(new byte[]{0x01, 0x7F}, name));
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(name, mFrames.get(0));
+        assertEquals(2, mParser.getDiscardedCount());
+    }
+
+    @Test
+    public void unknownResponseEndsWithItsNotification() {
+        final byte[] unknown = {(byte) 0xFE, 0x01, 0x02};
+        mParser.feed(unknown);
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(unknown, mFrames.get(0));
+    }
+
+    @Test
+    public void resetDropsAPartialResponse() {
+        final byte[] status = response(PfxProtocol.PFX_CMD_GET_STATUS, PfxProtocol.STATUS_RESPONSE_LENGTH);
+        final byte[] name = response(PfxProtocol.PFX_CMD_GET_NAME, PfxProtocol.NAME_RESPONSE_LENGTH);
+        mParser.feed(status, 0, 20);
+        mParser.reset();
+        mParser.feed(name);
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(name, mFrames.get(0));
+    }
+
+    @Test
+    public void responsesWrapAroundTheRing() {
+        final PfxFrameParser parser = new PfxFrameParser(new PfxFrameParser.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                mFrames.add(Arrays.copyOf(frame, length));
+            }
+        }, 64);
+        final byte[] status = response(PfxProtocol.PFX_CMD_GET_STATUS, PfxProtocol.STATUS_RESPONSE_LENGTH);
+        for (int i = 0; i < 5; i++) {
+            parser.feed(status, 0, 30);
+            parser.feed(status, 30, status.length - 30);
+        }
+        assertEquals(5, mFrames.size());
+        for (byte[] frame : mFrames) {
+            assertArrayEquals(status, frame);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityBelowTheLongestResponseIsRejected() {
+        new PfxFrameParser(null, PfxProtocol.MAX_RESPONSE_LENGTH - 1);                              //Would never complete a status response
+    }
+
+    @Test
+    public void ringJustLargeEnoughForTheLongestResponseCompletesIt() {
+        final PfxFrameParser parser = new PfxFrameParser(new PfxFrameParser.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                mFrames.add(Arrays.copyOf(frame, length));
+            }
+        }, PfxProtocol.MAX_RESPONSE_LENGTH);
+        final byte[] status = response(PfxProtocol.PFX_CMD_GET_STATUS, PfxProtocol.STATUS_RESPONSE_LENGTH);
+        parser.feed(status, 0, 7);
+        parser.feed(status, 7, status.length - 7);
+        parser.feed(status);
+        assertEquals(2, mFrames.size());
+        assertArrayEquals(status, mFrames.get(1));
+    }
+
+    // A response to the command with recognisable contents.
+    private static byte[] response(byte command, int length) {
+        final byte[] response = new byte[length];
+        response[0] = (byte) (command | PfxProtocol.PFX_RESPONSE_FLAG);
+        for (int i = 1; i < length; i++) {
+            response[i] = (byte) i;
+        }
+        return response;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        final byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+}
@@ -0,0 +1,94 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PfxStatusTest {
+    // Status response of a PFx Brick 16 MB, A204, serial 1234ABCD, firmware 1.40 build 002A,
+    // reporting error 0x03
+    private static final byte[] RESPONSE = {
+            (byte) 0x81, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00,
+            (byte) 0xA2, 0x04,
+            0x12, 0x34, (byte) 0xAB, (byte) 0xCD,
+            'P', 'F', 'x', ' ', 'B', 'r', 'i', 'c', 'k', ' ', '1', '6', ' ', 'M', 'B', 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0x01, 0x40,
+            0x00, 0x2A};
+
+    private final PfxStatus mStatus = new PfxStatus(RESPONSE);
+
+    @Test
+    public void responseIsTheLengthTheProtocolExpects() {
+        assertEquals(PfxStatus.LENGTH, RESPONSE.length);
+        assertEquals(PfxProtocol.STATUS_RESPONSE_LENGTH, PfxProtocol.responseLength(RESPONSE[0]));
+    }
+
+    @Test
+    public void fieldsAreDecoded() {
+        assertEquals(0x00, mStatus.getStatus());
+        assertEquals(0x03, mStatus.getErrorCode());
+        assertEquals(0xA204, mStatus.getProductId());
+        assertEquals(0x1234ABCDL, mStatus.getSerialNumber());                                       //Unsigned, despite the top bit
+        assertEquals(0x0140, mStatus.getFirmwareVersion());
+        assertEquals(0x002A, mStatus.getFirmwareBuild());
+    }
+
+    @Test
+    public void textIsFormattedAsShownOnTheBrick() {
+        assertEquals("A204", mStatus.getProductIdText());
+        assertEquals("1234ABCD", mStatus.getSerialNumberText());
+        assertEquals("PFx Brick 16 MB", mStatus.getProductDescription());
+        assertEquals("1.40", mStatus.getFirmwareVersionText());
+        assertEquals("002A", mStatus.getFirmwareBuildText());
+        assertSame(mStatus.getSerialNumberText(), mStatus.getSerialNumberText());                   //Formatted once
+    }
+
+    @Test
+    public void descriptionFillingItsFieldHasNoTerminator() {
+        final byte[] response = RESPONSE.clone();
+        Arrays.fill(response, 13, 37, (byte) 'x');
+        assertEquals(24, new PfxStatus(response).getProductDescription().length());
+    }
+
+    @Test
+    public void contentEqualsComparesTheResponseOnly() {
+        final byte[] longer = Arrays.copyOf(RESPONSE, RESPONSE.length + 4);                         //A scratch array with room to spare
+        longer[RESPONSE.length] = 0x55;
+        assertTrue(mStatus.contentEquals(longer));
+        assertTrue(mStatus.contentEquals(new PfxStatus(RESPONSE.clone())));
+
+        final byte[] otherError = RESPONSE.clone();
+        otherError[2] = 0x00;
+        assertFalse(mStatus.contentEquals(otherError));
+        assertFalse(mStatus.contentEquals((PfxStatus) null));
+    }
+
+    @Test
+    public void copyOfIsNotChangedByTheScratchArray() {
+        final byte[] scratch = Arrays.copyOf(RESPONSE, 64);
+        final PfxStatus copy = PfxStatus.copyOf(scratch);
+        scratch[2] = 0x7F;                                                                          //The parser reuses its array
+        assertEquals(0x03, copy.getErrorCode());
+        assertTrue(copy.contentEquals(mStatus));
+    }
+
+    @Test
+    public void shortFrameIsNotEqual() {
+        assertFalse(mStatus.contentEquals(Arrays.copyOf(RESPONSE, PfxStatus.LENGTH - 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortFrameIsRejected() {
+        new PfxStatus(Arrays.copyOf(RESPONSE, PfxStatus.LENGTH - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortFrameCannotBeCopied() {
+        PfxStatus.copyOf(new byte[20]);
+    }
+}
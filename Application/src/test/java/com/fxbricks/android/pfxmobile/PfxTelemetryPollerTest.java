@@ -0,0 +1,215 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PfxTelemetryPollerTest {
+    // Holds on to the poller's next tick instead of running it, the test runs it by hand
+    private class FakeScheduler extends ScheduledThreadPoolExecutor {
+        FakeScheduler() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            mTick = command;
+            mDelay = unit.toMillis(delay);
+            mDue = mNow + unit.toNanos(delay);
+            return super.schedule(NOTHING, delay, unit);                                            //Something stop() can cancel
+        }
+    }
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final List<byte[]> mSent = new ArrayList<>();
+    private long mNow = TimeUnit.SECONDS.toNanos(100);                                              //Fake System.nanoTime()
+    private Runnable mTick;
+    private long mDelay;                                                                            //Milliseconds until mTick is due
+    private long mDue;                                                                              //mNow at which mTick is due
+    private int mStatusCount = 0;
+
+    private FakeScheduler mScheduler;
+    private ScheduledExecutorService mClientScheduler;                                              //Response timeouts, never reached
+    private PfxCommandClient mClient;
+    private PfxTelemetryPoller mPoller;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mClientScheduler = Executors.newSingleThreadScheduledExecutor();
+        mClient = new PfxCommandClient(new PfxCommandClient.CommandSender() {
+            @Override
+            public void send(byte[] frame) {
+                mSent.add(frame);
+            }
+        }, mClientScheduler);
+        mPoller = new PfxTelemetryPoller(mClient, mScheduler, new PfxTelemetryPoller.Listener() {
+            @Override
+            public void onStatus(byte[] response, int length) {
+                mStatusCount++;
+            }
+
+            @Override
+            public void onPollFailed(int reason) {
+            }
+        }, new PfxTelemetryPoller.Clock() {
+            @Override
+            public long nanoTime() {
+                return mNow;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mPoller.stop();
+        mScheduler.shutdownNow();
+        mClientScheduler.shutdownNow();
+    }
+
+    @Test
+    public void idleLinkIsPolledAtTheMinimumInterval() {
+        mPoller.start();
+        assertEquals(1, mSent.size());                                                              //Right away
+        assertEquals(PfxTelemetryPoller.MIN_INTERVAL, mDelay);
+        respondAfter(10);
+        for (int i = 0; i < 3; i++) {
+            runTick();
+            respondAfter(10);
+        }
+        assertEquals(4, mSent.size());
+        assertEquals(4, mStatusCount);
+        assertEquals(PfxTelemetryPoller.MIN_INTERVAL, mPoller.getInterval());
+        assertEquals(PfxTelemetryPoller.MIN_INTERVAL, mDelay);
+    }
+
+    @Test
+    public void slowRoundTripRaisesTheFloorToTenTimesIt() {
+        mPoller.start();
+        respondAfter(120);
+        runTick();                                                                                  //Due at 500 ms, the floor is 1200 ms now
+        assertEquals(1, mSent.size());
+        assertEquals(1200, mPoller.getInterval());
+        assertEquals(1200 - PfxTelemetryPoller.MIN_INTERVAL, mDelay);
+        runTick();
+        assertEquals(2, mSent.size());
+        assertEquals(1200, mDelay);
+
+        respondAfter(5000);                                                                         //The floor never exceeds MAX_INTERVAL
+        runTick();
+        assertEquals(PfxTelemetryPoller.MAX_INTERVAL, mPoller.getInterval());
+    }
+
+    @Test
+    public void controlActivityDoublesTheIntervalUpToTheMaximum() {
+        mPoller.start();
+        respondAfter(10);
+        long interval = PfxTelemetryPoller.MIN_INTERVAL;
+        for (int i = 0; i < 20; i++) {
+            controlActivityBeforeTick();
+            final int sent = mSent.size();
+            runTick();
+            if (mSent.size() > sent) {
+                interval = Math.min(interval * 2, PfxTelemetryPoller.MAX_INTERVAL);
+                respondAfter(10);
+            }
+            assertEquals(interval, mPoller.getInterval());
+            assertTrue(mDelay <= PfxTelemetryPoller.ACTIVITY_HOLD);                                 //Keeps looking for the controls going idle
+        }
+        assertEquals(PfxTelemetryPoller.MAX_INTERVAL, mPoller.getInterval());
+    }
+
+    @Test
+    public void pollingSpeedsUpOnceTheControlsHaveBeenIdleForTheHold() {
+        mPoller.start();
+        respondAfter(10);
+        for (int i = 0; i < 6; i++) {
+            controlActivityBeforeTick();
+            final int sent = mSent.size();
+            runTick();
+            if (mSent.size() > sent) {
+                respondAfter(10);
+            }
+        }
+        final int sent = mSent.size();
+        assertEquals(PfxTelemetryPoller.MAX_INTERVAL, mPoller.getInterval());
+
+        mNow += TimeUnit.MILLISECONDS.toNanos(PfxTelemetryPoller.ACTIVITY_HOLD);                    //Past the next tick, idle for the hold
+        runTick();
+        assertEquals(PfxTelemetryPoller.MIN_INTERVAL, mPoller.getInterval());
+        assertEquals(sent + 1, mSent.size());                                                       //Overdue at the minimum interval
+    }
+
+    @Test
+    public void pollIsSkippedWhileAResponseIsAwaited() {
+        mPoller.start();
+        respondAfter(10);
+        mClient.request(PfxCodec.nameFrame(), new PfxCommandClient.ResponseCallback() {
+            @Override
+            public void onResponse(byte[] response, int length) {
+            }
+
+            @Override
+            public void onFailure(int reason) {
+            }
+        });
+        runTick();                                                                                  //Another request unanswered
+        assertEquals(2, mSent.size());
+        assertEquals(1, mPoller.getSkippedCount());
+
+        mClient.cancelAll();
+        runTick();
+        assertEquals(3, mSent.size());
+        assertEquals(2, mPoller.getPollCount());
+
+        runTick();                                                                                  //Own poll unanswered
+        assertEquals(3, mSent.size());
+        assertEquals(2, mPoller.getSkippedCount());
+    }
+
+    @Test
+    public void nothingIsPolledAfterStop() {
+        mPoller.start();
+        mPoller.stop();
+        runTick();
+        assertEquals(1, mSent.size());
+    }
+
+    // Sends a control command just before the next tick is due, as a joystick being held does.
+    private void controlActivityBeforeTick() {
+        mNow = Math.max(mNow, mDue - TimeUnit.MILLISECONDS.toNanos(1));
+        mPoller.onControlActivity();
+    }
+
+    // Advances the clock to the scheduled tick, unless it is past it already, and runs the tick.
+    private void runTick() {
+        mNow = Math.max(mNow, mDue);
+        final Runnable tick = mTick;
+        mTick = null;
+        tick.run();
+    }
+
+    // Answers the outstanding status request after the given round trip, in milliseconds.
+    private void respondAfter(long roundTrip) {
+        mNow += TimeUnit.MILLISECONDS.toNanos(roundTrip);
+        final byte[] response = new byte[PfxProtocol.STATUS_RESPONSE_LENGTH];
+        response[0] = (byte) (PfxProtocol.PFX_CMD_GET_STATUS | PfxProtocol.PFX_RESPONSE_FLAG);
+        assertTrue(mClient.onFrame(response, response.length));
+    }
+}
@@ -0,0 +1,119 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning the notifications sent by the brick back into responses and brick state.
+ */
+@State(Scope.Thread)
+public class PfxDecodeBenchmark {
+    @State(Scope.Thread)
+    public static class Notifications {
+        @Param({"20", "244"})                                                                       //Notification size with the default MTU and with a 247 byte MTU
+        public int chunkSize;
+    }
+
+    private byte[] mStatus;
+    private byte[] mName;
+    private PfxStatus mLastStatus;
+    private PfxFrameParser mFrameParser;
+    private PfxCommandClient mCommandClient;
+    private ScheduledExecutorService mScheduler;
+    private Blackhole mBlackhole;
+
+    private final PfxCommandClient.ResponseCallback mStatusCallback = new PfxCommandClient.ResponseCallback() {
+        @Override
+        public void onResponse(byte[] response, int length) {
+            mBlackhole.consume(new PfxStatus(response).getFirmwareVersion());
+        }
+
+        @Override
+        public void onFailure(int reason) {
+            throw new IllegalStateException("Status request failed: " + reason);
+        }
+    };
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mStatus = new byte[PfxProtocol.STATUS_RESPONSE_LENGTH];
+        mStatus[0] = (byte) (PfxProtocol.PFX_CMD_GET_STATUS | PfxProtocol.PFX_RESPONSE_FLAG);
+        mStatus[7] = (byte) 0xA2;
+        mStatus[8] = 0x04;
+        mStatus[37] = 0x01;
+        mStatus[38] = 0x40;
+        mLastStatus = PfxStatus.copyOf(mStatus);
+        mName = new byte[PfxProtocol.NAME_RESPONSE_LENGTH];
+        mName[0] = (byte) (PfxProtocol.PFX_CMD_GET_NAME | PfxProtocol.PFX_RESPONSE_FLAG);
+        final byte[] name = "PFx Brick 16 MB".getBytes();
+        System.arraycopy(name, 0, mName, 1, name.length);
+
+        mFrameParser = new PfxFrameParser(new PfxFrameParser.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                blackhole.consume(length);
+            }
+        });
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mCommandClient = new PfxCommandClient(new PfxCommandClient.CommandSender() {
+            @Override
+            public void send(byte[] frame) {
+                blackhole.consume(frame);
+            }
+        }, mScheduler);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mScheduler.shutdownNow();
+        mScheduler.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    // A status response arriving in notifications of chunkSize bytes
+    @Benchmark
+    public int parseStatus(Notifications notifications) {
+        final int chunkSize = notifications.chunkSize;
+        for (int offset = 0; offset < mStatus.length; offset += chunkSize) {
+            mFrameParser.feed(mStatus, offset, Math.min(chunkSize, mStatus.length - offset));
+        }
+        return mFrameParser.getFrameCount();
+    }
+
+    // Every field the device info screen shows, from a fresh status
+    @Benchmark
+    public void decodeStatus(Blackhole blackhole) {
+        final PfxStatus status = new PfxStatus(mStatus);
+        blackhole.consume(status.getProductIdText());
+        blackhole.consume(status.getFirmwareVersionText());
+        blackhole.consume(status.getSerialNumberText());
+        blackhole.consume(status.getProductDescription());
+    }
+
+    // A polled status identical to the last one, the common case
+    @Benchmark
+    public boolean unchangedStatus() {
+        return mLastStatus.contentEquals(mStatus);
+    }
+
+    @Benchmark
+    public String decodeName() {
+        return PfxProtocol.brickName(mName);
+    }
+
+    // Request, response matched to it and decoded, without a link in between
+    @Benchmark
+    public boolean statusRequestResponse() {
+        mCommandClient.request(PfxProtocol.getStatusFrame(), mStatusCallback);
+        return mCommandClient.onFrame(mStatus, mStatus.length);
+    }
+}
@@ -0,0 +1,62 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of building the command frames sent to the brick, the path every joystick and speed
+ * remote movement goes through.
+ */
+@State(Scope.Thread)
+public class PfxEncodeBenchmark {
+    private static final int[] EVENTS = {
+            PfxProtocol.EVT_8885_LEFT_FWD, PfxProtocol.EVT_8885_RIGHT_REV,
+            PfxProtocol.EVT_8879_LEFT_INC, PfxProtocol.EVT_8885_LEFT_CTROFF};
+
+    private final PfxCommandQueue mCommandQueue = new PfxCommandQueue();
+    private byte[] mDriveFrame;
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() {
+        mDriveFrame = PfxProtocol.remoteEventFrame(PfxProtocol.EVT_8885_LEFT_FWD, 1);
+    }
+
+    // Building a new frame for every remote control event
+    @Benchmark
+    public byte[] remoteEventFrame() {
+        final int next = mNext++;
+        return PfxProtocol.remoteEventFrame(EVENTS[next & 0x03], (next >> 2) & PfxProtocol.CHANNEL_MASK);
+    }
+
+    // DeviceControlActivity.pfxRemoteCommand(), called for every remote control event
+    @Benchmark
+    public byte[] codecRemoteEventFrame() {
+        final int next = mNext++;
+        return PfxCodec.remoteEventFrame(EVENTS[next & 0x03], (next >> 2) & PfxProtocol.CHANNEL_MASK);
+    }
+
+    @Benchmark
+    public byte[] allStopFrames() {
+        return PfxProtocol.allStopFrames();
+    }
+
+    @Benchmark
+    public byte[] statusFrame() {
+        return PfxProtocol.getStatusFrame();
+    }
+
+    @Benchmark
+    public int coalesceKey() {
+        return PfxProtocol.coalesceKey(mDriveFrame);
+    }
+
+    // A drive command through the command queue, as sent while the link keeps up
+    @Benchmark
+    public byte[] commandQueueOfferPoll() {
+        mCommandQueue.offer(mDriveFrame);
+        return mCommandQueue.poll();
+    }
+}
@@ -0,0 +1,98 @@
+package com.fxbricks.android.pfxmobile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status request round trips through the whole stack, command client, loopback transport and
+ * frame parser, against an emulated brick that answers without delay.  What is left is the
+ * overhead of the stack itself: queueing, thread hand-offs and decoding.
+ */
+@State(Scope.Thread)
+public class PfxLoopbackBenchmark {
+    @Param({"20", "244"})
+    public int chunkSize;
+
+    private PfxBrickEmulator mEmulator;
+    private LoopbackTransport mTransport;
+    private PfxFrameParser mFrameParser;
+    private PfxCommandClient mCommandClient;
+    private ScheduledExecutorService mScheduler;
+    private final Semaphore mAnswered = new Semaphore(0);
+
+    private final PfxCommandClient.ResponseCallback mStatusCallback = new PfxCommandClient.ResponseCallback() {
+        @Override
+        public void onResponse(byte[] response, int length) {
+            mAnswered.release();
+        }
+
+        @Override
+        public void onFailure(int reason) {
+            mAnswered.release();
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        mEmulator = new PfxBrickEmulator("PFx Brick");
+        mEmulator.setChunkSize(chunkSize);
+        mTransport = new LoopbackTransport(mEmulator);
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mCommandClient = new PfxCommandClient(new PfxCommandClient.CommandSender() {
+            @Override
+            public void send(byte[] frame) {
+                mTransport.send(frame);
+            }
+        }, mScheduler);
+        mFrameParser = new PfxFrameParser(new PfxFrameParser.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                mCommandClient.onFrame(frame, length);
+            }
+        });
+        mTransport.setReceiver(new PfxTransport.Receiver() {
+            @Override
+            public void onConnectionStateChanged(int state) {
+            }
+
+            @Override
+            public void onReady() {
+            }
+
+            @Override
+            public void onData(BufferPool.Buffer data) {
+                mFrameParser.feed(data.data(), 0, data.length());                                   //On the link thread, one at a time
+                data.release();
+            }
+
+            @Override
+            public void onDeviceInformation(String key, BufferPool.Buffer value) {
+                value.release();
+            }
+        });
+        mTransport.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mTransport.close();
+        mEmulator.close();
+        mScheduler.shutdownNow();
+        mScheduler.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void statusRoundTrip() throws InterruptedException {
+        mCommandClient.request(PfxProtocol.getStatusFrame(), mStatusCallback);
+        mAnswered.acquire();
+    }
+}